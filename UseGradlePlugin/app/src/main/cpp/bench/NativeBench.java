@@ -0,0 +1,285 @@
+package com.wizd.usegradleplugin;
+
+import com.wizd.mygradleplugin.Blowfish;
+
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * JNI harness for a host build of native-lib, run it with jni_bench.sh. Loads the library through
+ * the app's NativeInterface, checks that it decrypts what the plugin's Blowfish encrypts and then
+ * measures throughput and latency of NativeInterface.a by plaintext length and thread count, and
+ * the UTF-8 and the ISO-8859-1 decoding of ASCII literals that strDec chooses between.
+ *
+ * <pre>
+ * NativeBench [--lengths 8,64,1024] [--threads 1,4] [--millis 1000] [--check-only]
+ * </pre>
+ *
+ * Exits with 1 when a decrypt is wrong, so it doubles as a regression test.
+ */
+public class NativeBench {
+    // inputs each thread cycles through, so the loop is not one cached input
+    private static final int INPUTS = 64;
+    // latency samples kept per thread and configuration
+    private static final int MAX_SAMPLES = 1 << 20;
+    // decoded strings escape here, so the JIT cannot drop them
+    static String sink;
+
+    private static class Input {
+        final byte[] plain;
+        final byte[] encrypted;
+        final byte[] key;
+
+        Input(byte[] plain, byte[] encrypted, byte[] key) {
+            this.plain = plain;
+            this.encrypted = encrypted;
+            this.key = key;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        int[] lengths = {8, 16, 32, 64, 128, 256, 1024, 4096};
+        int[] threads = {1, Runtime.getRuntime().availableProcessors()};
+        long millis = 1000;
+        boolean checkOnly = false;
+        for (int i = 0; i < args.length; i++) {
+            if ("--lengths".equals(args[i]) && i + 1 < args.length) {
+                lengths = parseInts(args[++i]);
+            } else if ("--threads".equals(args[i]) && i + 1 < args.length) {
+                threads = parseInts(args[++i]);
+            } else if ("--millis".equals(args[i]) && i + 1 < args.length) {
+                millis = Long.parseLong(args[++i]);
+            } else if ("--check-only".equals(args[i])) {
+                checkOnly = true;
+            } else {
+                System.err.println("usage: NativeBench [--lengths 8,64,1024] [--threads 1,4] [--millis 1000] [--check-only]");
+                System.exit(2);
+            }
+        }
+
+        int failures = check(lengths);
+        if (failures > 0) {
+            System.out.println(String.format("NativeBench: %d wrong decrypts", failures));
+            System.exit(1);
+        }
+        System.out.println("NativeBench: all decrypts match");
+        if (checkOnly) {
+            return;
+        }
+
+        System.out.println(String.format("%8s %8s %14s %10s %10s %10s %10s", "length", "threads", "calls/s",
+                "MB/s", "p50 ns", "p99 ns", "max ns"));
+        for (int length : lengths) {
+            Input[] inputs = inputs(length, new Random(length));
+            // warm up the JIT and the thread local key schedule
+            run(inputs, 1, Math.min(millis, 200));
+            for (int threadCount : threads) {
+                run(inputs, threadCount, millis).print(length, threadCount);
+            }
+        }
+
+        System.out.println();
+        System.out.println(String.format("%8s %14s %14s %14s %10s", "length", "utf-8 ns", "latin-1 ns",
+                "strDec ns", "saved"));
+        for (int length : lengths) {
+            byte[][] plain = new byte[INPUTS][];
+            Input[] inputs = inputs(length, new Random(length));
+            for (int i = 0; i < INPUTS; i++) {
+                plain[i] = inputs[i].plain;
+            }
+            decode(plain, StandardCharsets.UTF_8, Math.min(millis, 200));
+            decode(plain, StandardCharsets.ISO_8859_1, Math.min(millis, 200));
+            double utf8 = decode(plain, StandardCharsets.UTF_8, millis);
+            double latin1 = decode(plain, StandardCharsets.ISO_8859_1, millis);
+            double call = run(inputs, 1, millis).nanosPerCall();
+            System.out.println(String.format("%8d %14.1f %14.1f %14.0f %9.2f%%", length, utf8, latin1,
+                    call, 100 * (utf8 - latin1) / (call + utf8)));
+        }
+    }
+
+    /**
+     * Times the last step of the generated strDec, decoding the decrypted bytes of an ASCII
+     * literal, on one thread. saved relates the difference to the whole strDec call.
+     *
+     * @return nanoseconds per decode
+     */
+    private static double decode(byte[][] plain, Charset charset, long millis) {
+        long n = 0;
+        long begin = System.nanoTime();
+        long end = begin + millis * 1000000L;
+        long now = begin;
+        while (now < end) {
+            // read the clock once per 1024 decodes, a call costs about as much as a short decode
+            for (int i = 0; i < 1024; i++) {
+                sink = new String(plain[(int) (n++ % INPUTS)], charset);
+            }
+            now = System.nanoTime();
+        }
+        return (now - begin) / (double) n;
+    }
+
+    /**
+     * Round trips random strings of every length and the cases the native side has to refuse.
+     *
+     * @return number of wrong results
+     */
+    private static int check(int[] lengths) {
+        int failures = 0;
+        Random random = new Random(42);
+        List<Integer> checked = new ArrayList<>();
+        for (int length : lengths) {
+            checked.add(length);
+        }
+        // every padding size, empty literals are never encrypted
+        for (int length = 1; length <= 17; length++) {
+            checked.add(length);
+        }
+        for (int length : checked) {
+            for (Input input : inputs(length, random)) {
+                byte[] decrypted = NativeInterface.a(input.encrypted, input.key);
+                if (!Arrays.equals(input.plain, decrypted)) {
+                    failures++;
+                    System.out.println(String.format("wrong decrypt of %d bytes: %s", length,
+                            Arrays.toString(decrypted)));
+                }
+            }
+        }
+
+        Input input = inputs(16, random)[0];
+        byte[][] refused = {
+                // shorter than IV + one block, not a multiple of the block size
+                NativeInterface.a(new byte[8], input.key),
+                NativeInterface.a(Arrays.copyOf(input.encrypted, input.encrypted.length - 1), input.key),
+                // key too long for the key schedule, and empty
+                NativeInterface.a(input.encrypted, new byte[57]),
+                NativeInterface.a(input.encrypted, new byte[0]),
+        };
+        for (byte[] result : refused) {
+            if (result == null || result.length != 0) {
+                failures++;
+                System.out.println("invalid input not refused: " + Arrays.toString(result));
+            }
+        }
+        return failures;
+    }
+
+    private static Input[] inputs(int length, Random random) {
+        Input[] inputs = new Input[INPUTS];
+        for (int i = 0; i < INPUTS; i++) {
+            byte[] plain = new byte[length];
+            for (int j = 0; j < length; j++) {
+                plain[j] = (byte) (' ' + random.nextInt(95));
+            }
+            // the plugin's keys: 32 bytes of 1..0x7C
+            byte[] key = new byte[32];
+            for (int j = 0; j < key.length; j++) {
+                key[j] = (byte) (random.nextInt(0x7C) + 1);
+            }
+            inputs[i] = new Input(plain, new Blowfish(key).encryptBytes(plain, random.nextLong()), key);
+        }
+        return inputs;
+    }
+
+    private static class Result {
+        final long[] samples;
+        final int sampleCount;
+        final long calls;
+        final long nanos;
+
+        Result(long[] samples, int sampleCount, long calls, long nanos) {
+            this.samples = samples;
+            this.sampleCount = sampleCount;
+            this.calls = calls;
+            this.nanos = nanos;
+        }
+
+        void print(int length, int threads) {
+            Arrays.sort(samples, 0, sampleCount);
+            double seconds = nanos / 1e9;
+            System.out.println(String.format("%8d %8d %14.0f %10.1f %10d %10d %10d", length, threads,
+                    calls / seconds, calls * (double) length / seconds / (1 << 20), percentile(0.5),
+                    percentile(0.99), sampleCount > 0 ? samples[sampleCount - 1] : 0));
+        }
+
+        double nanosPerCall() {
+            return calls > 0 ? nanos / (double) calls : 0;
+        }
+
+        private long percentile(double p) {
+            return sampleCount > 0 ? samples[(int) Math.min(sampleCount - 1, (long) (sampleCount * p))] : 0;
+        }
+    }
+
+    private static Result run(final Input[] inputs, int threadCount, final long millis) throws InterruptedException {
+        final long[][] samples = new long[threadCount][];
+        final int[] sampleCounts = new int[threadCount];
+        final long[] calls = new long[threadCount];
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[threadCount];
+        for (int t = 0; t < threadCount; t++) {
+            final int index = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] latencies = new long[MAX_SAMPLES];
+                    int count = 0;
+                    long n = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    long end = System.nanoTime() + millis * 1000000L;
+                    long now = System.nanoTime();
+                    while (now < end) {
+                        Input input = inputs[(int) (n++ % INPUTS)];
+                        NativeInterface.a(input.encrypted, input.key);
+                        long after = System.nanoTime();
+                        if (count < MAX_SAMPLES) {
+                            latencies[count++] = after - now;
+                        }
+                        now = after;
+                    }
+                    samples[index] = latencies;
+                    sampleCounts[index] = count;
+                    calls[index] = n;
+                }
+            }, "NativeBench-" + t);
+            threads[t].start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+
+        int total = 0;
+        long totalCalls = 0;
+        for (int t = 0; t < threadCount; t++) {
+            total += sampleCounts[t];
+            totalCalls += calls[t];
+        }
+        long[] merged = new long[total];
+        int offset = 0;
+        for (int t = 0; t < threadCount; t++) {
+            System.arraycopy(samples[t], 0, merged, offset, sampleCounts[t]);
+            offset += sampleCounts[t];
+        }
+        return new Result(merged, total, totalCalls, elapsed);
+    }
+
+    private static int[] parseInts(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,91 @@
+// Host benchmark of the decrypt path used by native-lib, build it with the CMake project outside of
+// Android (or g++ -O2 -std=c++11 bench/blowfish_bench.cpp) and run it without arguments.
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <vector>
+#include "../blowfish.h"
+
+static double nsPerCall(const std::chrono::steady_clock::time_point &start, int count) {
+    return std::chrono::duration<double, std::nano>(std::chrono::steady_clock::now() - start).count() / count;
+}
+
+int main() {
+    byte key[32];
+    for (int i = 0; i < 32; i++) {
+        key[i] = (byte) (1 + rand() % 0x7C);
+    }
+    BLOWFISH keyed(key, sizeof(key));
+    static thread_local BLOWFISH scratch;
+    const int lengths[] = {8, 16, 32, 64, 128, 256, 1024, 4096};
+
+    printf("%8s %14s %14s %14s %14s\n", "length", "old ns", "new ns", "old core ns", "new core ns");
+    for (int length : lengths) {
+        std::vector<byte> plain(length);
+        for (int i = 0; i < length; i++) {
+            plain[i] = (byte) (' ' + rand() % 95);
+        }
+        int encLength;
+        byte *enc = keyed.Encrypt_CBC(plain.data(), length, &encLength);
+        std::vector<byte> out(length);
+        byte tail[16];
+        int iterations = length >= 1024 ? 20000 : 100000;
+        volatile int sink = 0;
+
+        // old JNI path: key schedule on the stack, heap copy of the input, heap result
+        auto start = std::chrono::steady_clock::now();
+        for (int n = 0; n < iterations; n++) {
+            BLOWFISH bf(key, sizeof(key));
+            byte *copy = new byte[encLength];
+            memcpy(copy, enc, encLength);
+            int newLength;
+            byte *dec = bf.Decrypt_CBC(copy, encLength, &newLength);
+            memcpy(out.data(), dec, newLength);
+            sink += dec[0];
+            delete[] dec;
+            delete[] copy;
+        }
+        double oldNs = nsPerCall(start, iterations);
+
+        start = std::chrono::steady_clock::now();
+        for (int n = 0; n < iterations; n++) {
+            scratch.Rekey(key, sizeof(key));
+            int newLength = scratch.Decrypt_CBC_Tail(enc, encLength, tail);
+            scratch.Decrypt_CBC_Into(enc, encLength, tail, out.data(), newLength);
+            sink += out[0];
+        }
+        double newNs = nsPerCall(start, iterations);
+
+        // decryption alone, without the key schedule both paths pay
+        int coreIterations = iterations * 10;
+        std::vector<byte> copy(encLength);
+        start = std::chrono::steady_clock::now();
+        for (int n = 0; n < coreIterations; n++) {
+            memcpy(copy.data(), enc, encLength);
+            int newLength;
+            byte *dec = keyed.Decrypt_CBC(copy.data(), encLength, &newLength);
+            sink += dec[0];
+            delete[] dec;
+        }
+        double oldCoreNs = nsPerCall(start, coreIterations);
+
+        start = std::chrono::steady_clock::now();
+        for (int n = 0; n < coreIterations; n++) {
+            int newLength = keyed.Decrypt_CBC_Tail(enc, encLength, tail);
+            keyed.Decrypt_CBC_Into(enc, encLength, tail, out.data(), newLength);
+            sink += out[0];
+        }
+        double newCoreNs = nsPerCall(start, coreIterations);
+
+        int newLength = scratch.Decrypt_CBC_Tail(enc, encLength, tail);
+        scratch.Decrypt_CBC_Into(enc, encLength, tail, out.data(), newLength);
+        if (newLength != length || memcmp(out.data(), plain.data(), length) != 0) {
+            printf("length %d: decrypted bytes differ\n", length);
+            return 1;
+        }
+        delete[] enc;
+        printf("%8d %14.1f %14.1f %14.1f %14.1f\n", length, oldNs, newNs, oldCoreNs, newCoreNs);
+    }
+    return 0;
+}
@@ -0,0 +1,31 @@
+#!/bin/sh
+# Builds native-lib for the host JVM and runs NativeBench against it: decrypts of strings encrypted
+# by the plugin's Blowfish are checked first, then throughput and latency are measured by string
+# length and thread count. Exits non-zero when a decrypt is wrong. Arguments go to NativeBench, e.g.
+#   ./jni_bench.sh --lengths 16,256 --threads 1,4 --millis 500
+#   ./jni_bench.sh --check-only
+# Without cmake the library is built with $CXX (g++ by default) directly.
+set -e
+BENCH_DIR=$(cd "$(dirname "$0")" && pwd)
+CPP_DIR=$(dirname "$BENCH_DIR")
+ROOT=$(cd "$CPP_DIR/../../../../.." && pwd)
+BUILD=${BUILD_DIR:-$CPP_DIR/build-host}
+if [ -z "$JAVA_HOME" ]; then
+    JAVA_HOME=$(dirname "$(dirname "$(readlink -f "$(command -v javac)")")")
+fi
+
+mkdir -p "$BUILD/classes"
+if command -v cmake >/dev/null 2>&1; then
+    (cd "$BUILD" && cmake -DCMAKE_BUILD_TYPE=Release "$CPP_DIR" >/dev/null && cmake --build . --target native-lib)
+else
+    ${CXX:-g++} -O2 -std=c++11 -shared -fPIC -fvisibility=hidden \
+        -I"$JAVA_HOME/include" -I"$JAVA_HOME/include/linux" \
+        -o "$BUILD/libnative-lib.so" "$CPP_DIR/native-lib.cpp"
+fi
+
+"$JAVA_HOME/bin/javac" -nowarn -d "$BUILD/classes" \
+    "$CPP_DIR/../java/com/wizd/usegradleplugin/NativeInterface.java" \
+    "$ROOT/mygradleplugin/src/main/java/com/wizd/mygradleplugin/Blowfish.java" \
+    "$BENCH_DIR/NativeBench.java"
+exec "$JAVA_HOME/bin/java" -Djava.library.path="$BUILD" -cp "$BUILD/classes" \
+    com.wizd.usegradleplugin.NativeBench "$@"
@@ -81,6 +81,8 @@ class BLOWFISH{
     public:
         BLOWFISH(std::string hexKey);
         BLOWFISH(byte* cipherKey, int keylength);
+        BLOWFISH(); //no key yet, call Rekey before use
+        void Rekey(byte* cipherKey, int keylength);
 
         //TODO: string encryption functions -> base64
         std::string Encrypt_CBC(std::string data);
@@ -93,6 +95,13 @@ class BLOWFISH{
         byte* Decrypt_ECB(byte* data, int length, int* newlength);
         void Decrypt_Block(byte* block, int offset = 0);
 
+        //Allocation free CBC decryption of IV + ciphertext whose padding is at most two blocks long,
+        //as written by Encrypt_CBC and StringMist's Java Blowfish. Decrypt_CBC_Tail decrypts the
+        //last two blocks into tail[16] and returns the plaintext length (-1 for bad input), then
+        //Decrypt_CBC_Into writes that many bytes to out. Neither touches the object state.
+        int Decrypt_CBC_Tail(const byte* data, int length, byte* tail) const;
+        void Decrypt_CBC_Into(const byte* data, int length, const byte* tail, byte* out, int outlength) const;
+
         void SetRandomIV();
         void SetIV(byte* newIV);
         byte* GetIV();
@@ -103,6 +112,9 @@ class BLOWFISH{
         void SetupKey(byte* cipherKey, int length);
         void encipher();
         void decipher();
+        unsigned int F(unsigned int b) const;
+        void decipherWords(unsigned int* xl, unsigned int* xr) const;
+        void decryptBlockCBC(const byte* block, const byte* prev, byte* out) const;
         unsigned int round(unsigned int a, unsigned int b, unsigned int n);
         void setblock(byte* block, int offset);
         void getblock(byte* block, int offset);
@@ -146,6 +158,19 @@ class BLOWFISH{
         SetupKey(key, hexKey.length() / 2);
     }
 
+    BLOWFISH::BLOWFISH()
+    {
+        IvSet = false;
+    }
+
+    void BLOWFISH::Rekey(byte* cipherKey, int keyLength)
+    {
+        initBox();
+
+        IvSet = false;
+        SetupKey(cipherKey, keyLength);
+    }
+
     int BLOWFISH::hex2dec(char hex)
     {
         if('a' <= hex && hex <= 'f')
@@ -494,6 +519,79 @@ class BLOWFISH{
         std::swap(xl_par, xr_par);
     }
 
+    //Big endian word loads through memcpy, compilers turn them into one load plus a byte swap.
+    static inline unsigned int loadBE32(const byte* b)
+    {
+        unsigned int v;
+        memcpy(&v, b, 4);
+    #if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_LITTLE_ENDIAN__
+        v = __builtin_bswap32(v);
+    #elif !defined(__BYTE_ORDER__) || __BYTE_ORDER__ != __ORDER_BIG_ENDIAN__
+        v = (unsigned int) b[0] << 24 | (unsigned int) b[1] << 16 | (unsigned int) b[2] << 8 | b[3];
+    #endif
+        return v;
+    }
+
+    static inline void storeBE32(byte* b, unsigned int v)
+    {
+    #if defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_LITTLE_ENDIAN__
+        v = __builtin_bswap32(v);
+        memcpy(b, &v, 4);
+    #elif defined(__BYTE_ORDER__) && __BYTE_ORDER__ == __ORDER_BIG_ENDIAN__
+        memcpy(b, &v, 4);
+    #else
+        b[0] = v >> 24; b[1] = v >> 16; b[2] = v >> 8; b[3] = v;
+    #endif
+    }
+
+    inline unsigned int BLOWFISH::F(unsigned int b) const
+    {
+        return ((s0[b >> 24] + s1[(b >> 16) & 0xff]) ^ s2[(b >> 8) & 0xff]) + s3[b & 0xff];
+    }
+
+    //Same as decipher, on locals instead of xl_par and xr_par
+    inline void BLOWFISH::decipherWords(unsigned int* xl, unsigned int* xr) const
+    {
+        unsigned int l = *xl ^ p[ROUNDS + 1];
+        unsigned int r = *xr;
+        for(int i = ROUNDS; i > 0; i -= 2)
+        {
+            r ^= F(l) ^ p[i];
+            l ^= F(r) ^ p[i - 1];
+        }
+        *xl = r ^ p[0];
+        *xr = l;
+    }
+
+    inline void BLOWFISH::decryptBlockCBC(const byte* block, const byte* prev, byte* out) const
+    {
+        unsigned int xl = loadBE32(block);
+        unsigned int xr = loadBE32(block + 4);
+        decipherWords(&xl, &xr);
+        storeBE32(out, xl ^ loadBE32(prev));
+        storeBE32(out + 4, xr ^ loadBE32(prev + 4));
+    }
+
+    int BLOWFISH::Decrypt_CBC_Tail(const byte* data, int length, byte* tail) const
+    {
+        if(length < 24 || length % 8 != 0)
+            return -1;
+        decryptBlockCBC(data + length - 16, data + length - 24, tail);
+        decryptBlockCBC(data + length - 8, data + length - 16, tail + 8);
+        int i = 16;
+        while(i > 0 && tail[i - 1] == tail[15]) //same as findPaddingEnd
+            i--;
+        return length - 24 + i;
+    }
+
+    void BLOWFISH::Decrypt_CBC_Into(const byte* data, int length, const byte* tail, byte* out, int outlength) const
+    {
+        int body = length - 24; //plaintext in front of the two tail blocks, never padding
+        for(int i = 0; i < body; i += 8)
+            decryptBlockCBC(data + 8 + i, data + i, out + i);
+        memcpy(out + body, tail, outlength - body);
+    }
+
     unsigned int BLOWFISH::round(unsigned int a, unsigned int b, unsigned int n)
     {
         //TODO: CHECK ENDIANNESS
@@ -2,26 +2,52 @@
 #include <string>
 #include "blowfish.h"
 
+// Key schedule state (4KB) of the calling thread, rekeyed on every call instead of being built on
+// the stack each time.
+static thread_local BLOWFISH scratch;
 
 extern "C"
 JNIEXPORT jbyteArray JNICALL
 Java_com_wizd_usegradleplugin_NativeInterface_a(JNIEnv *env, jclass type, jbyteArray in_,
                                                 jbyteArray key_) {
-    jbyte *in = env->GetByteArrayElements(in_, NULL);
-    jbyte *key = env->GetByteArrayElements(key_, NULL);
     int keyLen = env->GetArrayLength(key_);
     int inLen = env->GetArrayLength(in_);
+    byte key[56];
+    if (keyLen <= 0 || keyLen > (int) sizeof(key)) {
+        return env->NewByteArray(0);
+    }
+    env->GetByteArrayRegion(key_, 0, keyLen, reinterpret_cast<jbyte *>(key));
+    scratch.Rekey(key, keyLen);
 
-    int newLength = 0;
-    BLOWFISH blowfish = BLOWFISH(reinterpret_cast<byte *>(key), keyLen);
-    byte *dec = blowfish.Decrypt_CBC(reinterpret_cast<byte *>(in), inLen, &newLength);
+    // The plaintext length is only known after the padding in the last blocks is decrypted.
+    byte tail[16];
+    // NULL, with an OutOfMemoryError pending, when the VM can not pin or copy the array
+    const byte *in = static_cast<const byte *>(env->GetPrimitiveArrayCritical(in_, NULL));
+    if (in == NULL) {
+        return NULL;
+    }
+    int newLength = scratch.Decrypt_CBC_Tail(in, inLen, tail);
+    env->ReleasePrimitiveArrayCritical(in_, const_cast<byte *>(in), JNI_ABORT);
+    if (newLength < 0) {
+        return env->NewByteArray(0);
+    }
 
     jbyteArray retArr = env->NewByteArray(newLength);
-    env->SetByteArrayRegion(retArr, 0, newLength, reinterpret_cast<const jbyte *>(dec));
-
-    delete []dec;
-    env->ReleaseByteArrayElements(in_, in, 0);
-    env->ReleaseByteArrayElements(key_, key, 0);
+    if (retArr == NULL) {
+        return NULL;
+    }
+    in = static_cast<const byte *>(env->GetPrimitiveArrayCritical(in_, NULL));
+    if (in == NULL) {
+        return NULL;
+    }
+    byte *out = static_cast<byte *>(env->GetPrimitiveArrayCritical(retArr, NULL));
+    if (out == NULL) {
+        env->ReleasePrimitiveArrayCritical(in_, const_cast<byte *>(in), JNI_ABORT);
+        return NULL;
+    }
+    scratch.Decrypt_CBC_Into(in, inLen, tail, out, newLength);
+    env->ReleasePrimitiveArrayCritical(retArr, out, 0);
+    env->ReleasePrimitiveArrayCritical(in_, const_cast<byte *>(in), JNI_ABORT);
 
     return retArr;
 }
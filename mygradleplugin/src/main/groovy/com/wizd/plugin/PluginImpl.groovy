@@ -2,6 +2,7 @@ package com.wizd.plugin
 
 import com.android.build.gradle.AppExtension
 import com.android.build.gradle.LibraryExtension
+import com.wizd.mygradleplugin.StringMistConfig
 
 import org.gradle.api.Plugin
 import org.gradle.api.Project
@@ -37,17 +38,17 @@ class PluginImpl implements Plugin<Project>{
     }
 
     void applyApplication(Project project, def android) {
-        android.registerTransform(new StringMistPlugin(project))
-        // throw an exception in instant run mode
+        registerTransform(project, android)
+        // throw an exception in instant run mode, unless StringMist is off for the variant
         android.applicationVariants.all { variant ->
             def variantName = variant.name.capitalize()
             try {
                 def instantRunTask = project.tasks.getByName("transformClassesWithInstantRunFor${variantName}")
-                if (instantRunTask) {
+                if (instantRunTask && modeOf(project, variant) != StringMistConfig.Mode.OFF) {
                     throw new GradleException(
                             "StringMist does not support instant run mode, please trigger build"
-                                    + " by assemble${variantName} or disable instant run"
-                                    + " in 'File->Settings...'."
+                                    + " by assemble${variantName}, disable instant run"
+                                    + " in 'File->Settings...' or set stringmist.modes = [${variant.buildType.name}: 'off']."
                     )
                 }
             } catch (UnknownTaskException e) {
@@ -57,6 +58,35 @@ class PluginImpl implements Plugin<Project>{
     }
 
     void applyLibrary(Project project, def android) {
-        android.registerTransform(new StringMistPlugin(project))
+        registerTransform(project, android)
+    }
+
+    // Prefer AGP's AsmClassVisitorFactory pipeline, the legacy Transform stays for AGP older than 7.2
+    // or when 'stringmist.legacyTransform=true' is set in gradle.properties.
+    void registerTransform(Project project, def android) {
+        if (StringMistDependencyTransform.isAvailable()) {
+            StringMistDependencyTransform.register(project)
+        }
+        if (StringMistInstrumentation.isSupported(project)) {
+            StringMistInstrumentation.register(project)
+        } else {
+            android.registerTransform(new StringMistPlugin(project))
+            if (android instanceof AppExtension) {
+                android.applicationVariants.all { variant ->
+                    if (StringMistDependencyTransform.isEnabled(project)
+                            && modeOf(project, variant) == StringMistConfig.Mode.FULL) {
+                        StringMistDependencyTransform.request(variant.runtimeConfiguration)
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The mode of a variant of the legacy variant API, see StringMistExtension.modeFor.
+     */
+    static StringMistConfig.Mode modeOf(Project project, def variant) {
+        return project.stringmist.modeFor(variant.name, variant.buildType.name,
+                variant.productFlavors*.name as List<String>)
     }
 }
@@ -0,0 +1,87 @@
+package com.wizd.plugin
+
+import com.android.build.api.instrumentation.AsmClassVisitorFactory
+import com.android.build.api.instrumentation.ClassContext
+import com.android.build.api.instrumentation.ClassData
+import com.wizd.mygradleplugin.LiteralPolicy
+import com.wizd.mygradleplugin.StringMistClassInjector
+import com.wizd.mygradleplugin.StringMistClassVisitor
+import com.wizd.mygradleplugin.StringMistConfig
+import org.objectweb.asm.ClassVisitor
+
+/**
+ * Plugs StringMistClassVisitor into AGP's instrumentation pipeline (AGP 7.2+), which runs
+ * incrementally, in parallel and with build cache support, instead of copying every class and jar
+ * like the legacy StringMistPlugin transform does.
+ */
+abstract class StringMistClassVisitorFactory implements AsmClassVisitorFactory<StringMistInstrumentationParameters> {
+
+    private transient StringMistClassInjector mInjector
+    private transient Set<String> mIncludedClasses
+    private transient LiteralPolicy mLiteralPolicy
+
+    @Override
+    ClassVisitor createClassVisitor(ClassContext classContext, ClassVisitor nextClassVisitor) {
+        def params = getParameters().get()
+        def visitor = new StringMistClassVisitor(
+                getInstrumentationContext().apiVersion.get(),
+                params.nativeInterfaceClass.get(),
+                params.seed.getOrNull(),
+                nextClassVisitor)
+        visitor.setMethodSizeLimits(params.hugeMethodLimit.get(), params.inlineLimit.get(),
+                StringMistConfig.MethodSizePolicy.parse(params.methodSizePolicy.get()))
+        visitor.setLiteralChunkSize(params.literalChunkSize.get())
+        visitor.setCanonicalStrings(params.canonicalStrings.get())
+        visitor.setEqualsGuards(params.equalsGuards.get())
+        visitor.setLiteralPolicy(getLiteralPolicy())
+        visitor.setFastEncoding(params.fastEncoding.get())
+        return visitor
+    }
+
+    @Override
+    boolean isInstrumentable(ClassData classData) {
+        if (getInjector().isExcludeClassName(classData.className)) {
+            return false
+        }
+        // project classes have a registration of their own, no included jar means nothing to do here
+        return !getParameters().get().dependenciesOnly.get() || getIncludedClasses().contains(classData.className)
+    }
+
+    private synchronized StringMistClassInjector getInjector() {
+        if (mInjector == null) {
+            def params = getParameters().get()
+            mInjector = new StringMistClassInjector(new StringMistConfig(
+                    params.nativeInterfaceClass.get(),
+                    params.excludeClasses.get() as String[],
+                    new String[0]))
+        }
+        return mInjector
+    }
+
+    private synchronized LiteralPolicy getLiteralPolicy() {
+        if (mLiteralPolicy == null) {
+            def params = getParameters().get()
+            mLiteralPolicy = new LiteralPolicy(params.encryptLiterals.get() as String[],
+                    params.skipLiterals.get() as String[])
+        }
+        return mLiteralPolicy
+    }
+
+    private synchronized Set<String> getIncludedClasses() {
+        if (mIncludedClasses == null) {
+            def jars = getParameters().get().includedJars
+            Set<String> classNames = new HashSet<>()
+            jars.each { File jar ->
+                StringMistClassInjector.openZip(jar).withCloseable { zip ->
+                    zip.entries().each { entry ->
+                        if (entry.name.endsWith('.class')) {
+                            classNames.add(entry.name.substring(0, entry.name.length() - 6).replace('/', '.'))
+                        }
+                    }
+                }
+            }
+            mIncludedClasses = classNames
+        }
+        return mIncludedClasses
+    }
+}
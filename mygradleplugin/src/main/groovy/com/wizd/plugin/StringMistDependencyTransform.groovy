@@ -0,0 +1,100 @@
+package com.wizd.plugin
+
+import org.gradle.api.Project
+import org.gradle.api.artifacts.Configuration
+import org.gradle.api.attributes.Attribute
+import org.gradle.util.GradleVersion
+
+/**
+ * Encrypts the jars listed in includeJars with a Gradle artifact transform (Gradle 5.3+) instead
+ * of inside every variant's transform, so each jar is encrypted once per content and config and
+ * app builds only transform project classes. Kept apart from PluginImpl so that older Gradle
+ * versions never load StringMistJarTransform.
+ */
+class StringMistDependencyTransform {
+    static final Attribute<Boolean> ENCRYPTED = Attribute.of('com.wizd.stringmist.encrypted', Boolean)
+    private static final Attribute<String> ARTIFACT_TYPE = Attribute.of('artifactType', String)
+    // class jars AGP resolves for dexing, 'android-classes' up to 3.x, 'android-classes-jar' after
+    private static final List<String> CLASS_ARTIFACT_TYPES = ['android-classes', 'android-classes-jar']
+    // The other artifacts AGP resolves from the runtime classpath, which carry the ENCRYPTED=false
+    // of their jar or aar as well. Never the jar and aar forms AGP derives class jars from, nor what
+    // it derives from class jars (dex, keep rules, desugared jars): a pass-through transform there
+    // would let Gradle skip the encryption.
+    private static final List<String> PASS_THROUGH_ARTIFACT_TYPES = [
+            'android-manifest', 'android-res', 'android-compiled-dependencies-resources',
+            'android-res-static-library', 'android-public-res', 'android-symbol',
+            'android-symbol-with-package-name', 'android-assets', 'android-jni', 'android-java-res',
+            // 'proguad' (sic) up to AGP 3.x
+            'android-proguad-rules', 'android-consumer-proguard-rules', 'android-filtered-proguard-rules',
+            'android-unfiltered-proguard-rules', 'android-lint', 'android-annotations', 'android-aidl',
+            'android-renderscript', 'android-navigation-json', 'android-art-profile', 'android-aar-metadata',
+            'android-prefab', 'android-databinding', 'android-databinding-class-log']
+
+    static boolean isAvailable() {
+        return GradleVersion.current() >= GradleVersion.version('5.3')
+    }
+
+    /**
+     * Only valid once the build script is evaluated. Stages can not be handed to a Gradle transform,
+     * with stages the jars are encrypted in StringMist's own pass.
+     */
+    static boolean isEnabled(Project project) {
+        return isAvailable() && project.stringmist.dependencyTransform && !project.stringmist.dryRun &&
+                project.stringmist.stages.isEmpty()
+    }
+
+    static void register(Project project) {
+        def dependencies = project.dependencies
+        dependencies.attributesSchema.attribute(ENCRYPTED)
+        // Artifacts derived from these by AGP's own transforms keep the attribute.
+        ['jar', 'aar'].each { String type ->
+            dependencies.artifactTypes.maybeCreate(type).attributes.attribute(ENCRYPTED, false)
+        }
+        StringMistExtension stringmist = project.stringmist
+        CLASS_ARTIFACT_TYPES.each { String artifactType ->
+            dependencies.registerTransform(StringMistJarTransform) { spec ->
+                spec.from.attribute(ARTIFACT_TYPE, artifactType).attribute(ENCRYPTED, false)
+                spec.to.attribute(ARTIFACT_TYPE, artifactType).attribute(ENCRYPTED, true)
+                spec.parameters { params ->
+                    configure(project, params, stringmist)
+                }
+            }
+        }
+        PASS_THROUGH_ARTIFACT_TYPES.each { String artifactType ->
+            dependencies.registerTransform(StringMistPassThroughTransform) { spec ->
+                spec.from.attribute(ARTIFACT_TYPE, artifactType).attribute(ENCRYPTED, false)
+                spec.to.attribute(ARTIFACT_TYPE, artifactType).attribute(ENCRYPTED, true)
+            }
+        }
+    }
+
+    /**
+     * Makes the variant resolve encrypted dependency jars. Only the runtime classpath, which is
+     * dexed, asks for them; compilation keeps using the plain jars. AGP creates the artifact views
+     * of the configuration, so every view asks, and the other artifacts of jars and aars reach the
+     * encrypted side through StringMistPassThroughTransform.
+     */
+    static void request(Configuration runtimeConfiguration) {
+        runtimeConfiguration.attributes.attribute(ENCRYPTED, true)
+    }
+
+    // Providers, the extension is not configured yet when the transform is registered. params is
+    // untyped so that loading this class never loads the Gradle 5.3 transform types.
+    private static void configure(Project project, def params, StringMistExtension stringmist) {
+        params.nativeInterfaceClass.set(project.provider { stringmist.nativeInterfaceClass.replace('.', '/') })
+        params.excludeClasses.set(project.provider { stringmist.excludeClasses as List<String> })
+        params.includeJars.set(project.provider { stringmist.includeJars as List<String> })
+        params.seed.set(project.provider { stringmist.seed })
+        params.jarCompression.set(project.provider { stringmist.jarCompression })
+        params.rewriteMode.set(project.provider { stringmist.rewriteMode })
+        params.hugeMethodLimit.set(project.provider { stringmist.hugeMethodLimit })
+        params.inlineLimit.set(project.provider { stringmist.inlineLimit })
+        params.methodSizePolicy.set(project.provider { stringmist.methodSizePolicy })
+        params.literalChunkSize.set(project.provider { stringmist.literalChunkSize })
+        params.canonicalStrings.set(project.provider { stringmist.canonicalStrings })
+        params.encryptLiterals.set(project.provider { stringmist.encryptLiterals as List<String> })
+        params.skipLiterals.set(project.provider { stringmist.skipLiterals as List<String> })
+        params.equalsGuards.set(project.provider { stringmist.equalsGuards })
+        params.lazyInterfaceConstants.set(project.provider { stringmist.lazyInterfaceConstants })
+    }
+}
@@ -1,5 +1,8 @@
 package com.wizd.plugin
 
+import com.wizd.mygradleplugin.ClassTransformStage
+import com.wizd.mygradleplugin.StringMistConfig
+
 class StringMistExtension {
 //    String key
 //    boolean enable = true
@@ -7,5 +10,59 @@ class StringMistExtension {
     String nativeInterfaceClass
     String[] excludeClasses = []
     String[] includeJars = []
+    // encrypt includeJars with a cacheable Gradle artifact transform (Gradle 5.3+) instead of per variant
+    boolean dependencyTransform = true
+    // reuse transformed classes and jars across builds, keyed by their content
+    boolean cacheEnabled = true
+    // defaults to <gradle user home>/caches/stringmist
+    String cacheDir
+    long cacheMaxSize = 512L * 1024 * 1024
+    // keep transformed jars in the Gradle daemon, shared by all variants and builds
+    boolean memoryCacheEnabled = true
+    long memoryCacheMaxSize = 256L * 1024 * 1024
+    // worker threads and the number of jar entries held in memory at once
+    int threads = Runtime.runtime.availableProcessors()
+    int jarMaxInFlight = 256
+    // secret seed for reproducible output, keep it out of version control
+    String seed
+    // compression of output jars: stored, fast, default or parallel
+    String jarCompression = 'default'
+    // light keeps stack map frames and copies methods without literals, full expands every frame
+    String rewriteMode = 'light'
+    // methods that encryption would push over these sizes get accessors or stay plain, 0 disables
+    int hugeMethodLimit = StringMistConfig.DEFAULT_HUGE_METHOD_LIMIT
+    int inlineLimit = StringMistConfig.DEFAULT_INLINE_LIMIT
+    String methodSizePolicy = 'accessor'
+    // decrypt method in every class ('class'), one holder per 'package', or sharedHolders 'shared' holders
+    String decMethodGranularity = 'class'
+    int sharedHolders = 16
+    // literals over this many bytes of UTF-8 are encrypted in chunks and decrypted once
+    int literalChunkSize = StringMistConfig.DEFAULT_LITERAL_CHUNK_SIZE
+    // intern decrypted strings, one instance per distinct literal and == works like for constants
+    boolean canonicalStrings = false
+    // literal rules (regex:, entropy:, url, host, key, log, annotation:), see LiteralPolicy;
+    // only literals matching one of encryptLiterals, all when it is empty, and none of skipLiterals are encrypted
+    String[] encryptLiterals = []
+    String[] skipLiterals = []
+    // s.equals("literal"), as in string switches, checks the length and then a cached decrypted literal
+    boolean equalsGuards = true
+    // interface String constants are decrypted on first read through <interface>$StrMist instead of in
+    // the interface's static initializer; only reads in classes StringMist transforms are redirected,
+    // other code and reflection see null. Legacy Transform and the dependency transform only
+    boolean lazyInterfaceConstants = false
+    // other bytecode transforms run in the same read and write of each class, see ClassTransformStage;
+    // legacy Transform only, and includeJars are then encrypted there instead of by the dependency transform
+    List<ClassTransformStage> stages = []
+    // full encrypts with Blowfish, fast only XORs the literals of project classes, off leaves classes alone
+    String mode = 'full'
+    // mode by variant, build type or flavor name, e.g. [debug: 'fast'], in that order of precedence
+    Map<String, String> modes = [:]
+    // only report what would be encrypted and how much classes grow, classes are left as they are
+    boolean dryRun = false
 //    String implementation
+
+    StringMistConfig.Mode modeFor(String variantName, String buildType, List<String> flavors) {
+        String name = modes[variantName] ?: modes[buildType] ?: flavors.findResult { modes[it] } ?: mode
+        return StringMistConfig.Mode.parse(name)
+    }
 }
\ No newline at end of file
@@ -0,0 +1,150 @@
+package com.wizd.plugin
+
+import com.android.build.api.instrumentation.FramesComputationMode
+import com.android.build.api.instrumentation.InstrumentationScope
+import com.wizd.mygradleplugin.JarMatcher
+import com.wizd.mygradleplugin.StringMistConfig
+import org.gradle.api.Action
+import org.gradle.api.GradleException
+import org.gradle.api.Project
+import org.gradle.api.artifacts.ArtifactCollection
+import org.gradle.api.artifacts.component.ModuleComponentIdentifier
+import org.gradle.api.artifacts.result.ResolvedArtifactResult
+import org.gradle.api.attributes.Attribute
+import org.gradle.api.specs.Spec
+
+/**
+ * Registers StringMistClassVisitorFactory on every variant. Kept apart from PluginImpl so that
+ * older AGP versions, which lack the instrumentation API, never load these classes. No method
+ * signature here may name an AGP 7 type, isSupported runs on those versions too.
+ */
+class StringMistInstrumentation {
+    private static final Attribute<String> ARTIFACT_TYPE = Attribute.of('artifactType', String)
+
+    static boolean isSupported(Project project) {
+        if (Boolean.parseBoolean(project.findProperty('stringmist.legacyTransform')?.toString())) {
+            return false
+        }
+        if (project.extensions.findByName('androidComponents') == null) {
+            return false
+        }
+        try {
+            Class.forName('com.android.build.api.instrumentation.AsmClassVisitorFactory')
+            Class.forName('com.android.build.api.variant.Instrumentation')
+            return true
+        } catch (ClassNotFoundException e) {
+            return false
+        }
+    }
+
+    static void register(Project project) {
+        def components = project.extensions.getByName('androidComponents')
+        components.onVariants(components.selector().all(), { variant ->
+            StringMistExtension stringmist = project.stringmist
+            // AGP hands instrumentation one class at a time, a report needs all of them
+            // Building the variant fails rather than packaging its strings in plain text.
+            if (stringmist.dryRun) {
+                String message = String.format("StringMist: dryRun needs the legacy transform, %s is not"
+                        + " built. Run StringMistCli --dry-run on its classes and jars instead.", variant.name)
+                project.tasks.matching { it.name == "pre${variant.name.capitalize()}Build".toString() }.configureEach {
+                    it.doFirst {
+                        throw new GradleException(message)
+                    }
+                }
+                return
+            }
+            StringMistConfig.Mode mode = stringmist.modeFor(variant.name, variant.buildType,
+                    variant.productFlavors*.second as List<String>)
+            if (mode == StringMistConfig.Mode.OFF) {
+                return
+            }
+            // AGP already runs all AsmClassVisitorFactory registrations in one pass per class
+            if (!stringmist.stages.isEmpty()) {
+                println(String.format("StringMist: stages only run with the legacy transform, register them"
+                        + " as AsmClassVisitorFactory to share AGP's pass over the classes of %s.", variant.name))
+            }
+            // instrumentation can't add the holder classes
+            if (stringmist.lazyInterfaceConstants) {
+                println(String.format("StringMist: lazyInterfaceConstants only works with the legacy transform,"
+                        + " the interface constants of %s are decrypted in their static initializers.", variant.name))
+            }
+            variant.instrumentation.transformClassesWith(
+                    StringMistClassVisitorFactory, InstrumentationScope.PROJECT) { params ->
+                configure(params, stringmist, mode)
+                params.dependenciesOnly.set(false)
+            }
+            // With the dependency transform the jars arrive encrypted. Otherwise dependency classes
+            // can not be told apart by jar in isInstrumentable, so the jars listed in includeJars
+            // get a second registration that only accepts their classes. Fast mode leaves jars alone.
+            boolean full = mode == StringMistConfig.Mode.FULL
+            boolean dependencyTransform = StringMistDependencyTransform.isEnabled(project)
+            if (full && dependencyTransform && project.plugins.hasPlugin('com.android.application')) {
+                StringMistDependencyTransform.request(variant.runtimeConfiguration)
+            }
+            if (full && !dependencyTransform && stringmist.includeJars.length > 0) {
+                JarMatcher includeJars = new JarMatcher(stringmist.includeJars)
+                // the class jars, the runtime configuration itself has the .aar files of libraries
+                ArtifactCollection classJars = variant.runtimeConfiguration.incoming.artifactView { view ->
+                    view.attributes { it.attribute(ARTIFACT_TYPE, 'android-classes-jar') }
+                }.artifacts
+                variant.instrumentation.transformClassesWith(
+                        StringMistClassVisitorFactory, InstrumentationScope.ALL) { params ->
+                    configure(params, stringmist, mode)
+                    params.dependenciesOnly.set(true)
+                    params.includedJars.from(classJars.artifactFiles.filter(includedFiles(classJars, includeJars)))
+                }
+            }
+            variant.instrumentation.setAsmFramesComputationMode(
+                    FramesComputationMode.COMPUTE_FRAMES_FOR_INSTRUMENTED_METHODS)
+        } as Action)
+    }
+
+    /**
+     * Matches includeJars against the jar name, or for library modules against the name of their
+     * .aar or .jar, since the class jar of an .aar is just classes.jar. Resolves once, when the
+     * filter is first asked.
+     */
+    private static Spec<File> includedFiles(ArtifactCollection classJars, JarMatcher includeJars) {
+        Set<File> included = null
+        return { File file ->
+            synchronized (classJars) {
+                if (included == null) {
+                    included = new HashSet<>()
+                    classJars.artifacts.each { ResolvedArtifactResult artifact ->
+                        if (artifactNames(artifact).any { includeJars.match(it) != null }) {
+                            included.add(artifact.file)
+                        }
+                    }
+                }
+            }
+            return included.contains(file)
+        } as Spec<File>
+    }
+
+    private static List<String> artifactNames(ResolvedArtifactResult artifact) {
+        List<String> names = [artifact.file.name]
+        def component = artifact.id.componentIdentifier
+        if (component instanceof ModuleComponentIdentifier) {
+            names.add("${component.module}-${component.version}.aar".toString())
+            names.add("${component.module}-${component.version}.jar".toString())
+        }
+        return names
+    }
+
+    // params is untyped: PluginImpl calls isSupported dynamically, and building this class's
+    // metaclass would otherwise load the AGP 7.2 InstrumentationParameters on older AGP versions.
+    private static void configure(def params, StringMistExtension stringmist, StringMistConfig.Mode mode) {
+        params.nativeInterfaceClass.set(stringmist.nativeInterfaceClass.replace('.', '/'))
+        params.excludeClasses.set(stringmist.excludeClasses as List<String>)
+        params.seed.set(stringmist.seed)
+        params.hugeMethodLimit.set(stringmist.hugeMethodLimit)
+        params.inlineLimit.set(stringmist.inlineLimit)
+        params.methodSizePolicy.set(stringmist.methodSizePolicy)
+        params.literalChunkSize.set(stringmist.literalChunkSize)
+        params.canonicalStrings.set(stringmist.canonicalStrings)
+        params.equalsGuards.set(stringmist.equalsGuards)
+        params.encryptLiterals.set(stringmist.encryptLiterals as List<String>)
+        params.skipLiterals.set(stringmist.skipLiterals as List<String>)
+        params.fastEncoding.set(mode == StringMistConfig.Mode.FAST)
+    }
+}
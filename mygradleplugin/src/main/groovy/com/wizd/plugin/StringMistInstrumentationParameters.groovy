@@ -0,0 +1,57 @@
+package com.wizd.plugin
+
+import com.android.build.api.instrumentation.InstrumentationParameters
+import org.gradle.api.file.ConfigurableFileCollection
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.tasks.Classpath
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Optional
+
+interface StringMistInstrumentationParameters extends InstrumentationParameters {
+    @Input
+    Property<String> getNativeInterfaceClass()
+
+    @Input
+    ListProperty<String> getExcludeClasses()
+
+    @Input
+    @Optional
+    Property<String> getSeed()
+
+    @Input
+    Property<Integer> getHugeMethodLimit()
+
+    @Input
+    Property<Integer> getInlineLimit()
+
+    @Input
+    Property<String> getMethodSizePolicy()
+
+    @Input
+    Property<Integer> getLiteralChunkSize()
+
+    @Input
+    Property<Boolean> getCanonicalStrings()
+
+    @Input
+    ListProperty<String> getEncryptLiterals()
+
+    @Input
+    ListProperty<String> getSkipLiterals()
+
+    @Input
+    Property<Boolean> getEqualsGuards()
+
+    // XOR only, for variants in fast mode
+    @Input
+    Property<Boolean> getFastEncoding()
+
+    // The registration for dependency classes, it only instruments classes packed in includedJars.
+    @Input
+    Property<Boolean> getDependenciesOnly()
+
+    // includeJars matched on the runtime classpath, see StringMistInstrumentation
+    @Classpath
+    ConfigurableFileCollection getIncludedJars()
+}
@@ -0,0 +1,119 @@
+package com.wizd.plugin
+
+import com.wizd.mygradleplugin.JarMatcher
+import com.wizd.mygradleplugin.StringMistClassInjector
+import com.wizd.mygradleplugin.StringMistConfig
+import org.gradle.api.artifacts.transform.CacheableTransform
+import org.gradle.api.artifacts.transform.InputArtifact
+import org.gradle.api.artifacts.transform.TransformAction
+import org.gradle.api.artifacts.transform.TransformOutputs
+import org.gradle.api.artifacts.transform.TransformParameters
+import org.gradle.api.file.FileSystemLocation
+import org.gradle.api.provider.ListProperty
+import org.gradle.api.provider.Property
+import org.gradle.api.provider.Provider
+import org.gradle.api.tasks.Input
+import org.gradle.api.tasks.Optional
+import org.gradle.api.tasks.PathSensitive
+import org.gradle.api.tasks.PathSensitivity
+
+/**
+ * Encrypts one dependency jar matched by includeJars and passes every other artifact through.
+ * Gradle caches the result by jar content and parameters and shares it between modules, variants
+ * and builds, see StringMistDependencyTransform.
+ */
+@CacheableTransform
+abstract class StringMistJarTransform implements TransformAction<Parameters> {
+
+    interface Parameters extends TransformParameters {
+        @Input
+        Property<String> getNativeInterfaceClass()
+
+        @Input
+        ListProperty<String> getExcludeClasses()
+
+        @Input
+        ListProperty<String> getIncludeJars()
+
+        @Input
+        @Optional
+        Property<String> getSeed()
+
+        @Input
+        Property<String> getJarCompression()
+
+        @Input
+        Property<String> getRewriteMode()
+
+        @Input
+        Property<Integer> getHugeMethodLimit()
+
+        @Input
+        Property<Integer> getInlineLimit()
+
+        @Input
+        Property<String> getMethodSizePolicy()
+
+        @Input
+        Property<Integer> getLiteralChunkSize()
+
+        @Input
+        Property<Boolean> getCanonicalStrings()
+
+        @Input
+        ListProperty<String> getEncryptLiterals()
+
+        @Input
+        ListProperty<String> getSkipLiterals()
+
+        @Input
+        Property<Boolean> getEqualsGuards()
+
+        @Input
+        Property<Boolean> getLazyInterfaceConstants()
+    }
+
+    // includeJars rules match file names, so the name is part of the cache key
+    @InputArtifact
+    @PathSensitive(PathSensitivity.NAME_ONLY)
+    abstract Provider<FileSystemLocation> getInputArtifact()
+
+    @Override
+    void transform(TransformOutputs outputs) {
+        File input = getInputArtifact().get().asFile
+        Parameters params = getParameters()
+        String[] includeJars = params.includeJars.get() as String[]
+        if (!input.isFile() || !input.name.endsWith('.jar') || new JarMatcher(includeJars).match(input.name) == null) {
+            outputs.file(input)
+            return
+        }
+
+        StringMistConfig config = new StringMistConfig(params.nativeInterfaceClass.get(),
+                params.excludeClasses.get() as String[], includeJars)
+        config.seed = params.seed.getOrNull()
+        config.jarCompression = StringMistConfig.Compression.parse(params.jarCompression.get())
+        config.rewriteMode = StringMistConfig.RewriteMode.parse(params.rewriteMode.get())
+        config.hugeMethodLimit = params.hugeMethodLimit.get()
+        config.inlineLimit = params.inlineLimit.get()
+        config.methodSizePolicy = StringMistConfig.MethodSizePolicy.parse(params.methodSizePolicy.get())
+        config.literalChunkSize = params.literalChunkSize.get()
+        config.canonicalStrings = params.canonicalStrings.get()
+        config.encryptLiterals = params.encryptLiterals.get() as String[]
+        config.skipLiterals = params.skipLiterals.get() as String[]
+        config.equalsGuards = params.equalsGuards.get()
+        // holders go into the output jar, reads are only redirected within the jar
+        config.lazyInterfaceConstants = params.lazyInterfaceConstants.get()
+        // Holder classes could not reach the app's output, and Gradle already runs the transforms
+        // of different jars in parallel.
+        config.decMethodGranularity = StringMistConfig.DecMethodGranularity.CLASS
+        config.threads = 1
+
+        StringMistClassInjector injector = new StringMistClassInjector(config)
+        try {
+            injector.indexInterfaceConstants(Collections.singletonList(input))
+            injector.doFog2Jar(input, outputs.file(input.name))
+        } finally {
+            injector.shutdown()
+        }
+    }
+}
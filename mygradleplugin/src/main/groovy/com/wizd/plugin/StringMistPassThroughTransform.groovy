@@ -0,0 +1,28 @@
+package com.wizd.plugin
+
+import org.gradle.api.artifacts.transform.InputArtifact
+import org.gradle.api.artifacts.transform.TransformAction
+import org.gradle.api.artifacts.transform.TransformOutputs
+import org.gradle.api.artifacts.transform.TransformParameters
+import org.gradle.api.file.FileSystemLocation
+import org.gradle.api.provider.Provider
+
+/**
+ * Hands a manifest, resource, asset or other artifact that is not a class jar on as it is, so
+ * that it matches the encrypted runtime classpath, see StringMistDependencyTransform.
+ */
+abstract class StringMistPassThroughTransform implements TransformAction<TransformParameters.None> {
+
+    @InputArtifact
+    abstract Provider<FileSystemLocation> getInputArtifact()
+
+    @Override
+    void transform(TransformOutputs outputs) {
+        File input = getInputArtifact().get().asFile
+        if (input.isDirectory()) {
+            outputs.dir(input)
+        } else if (input.isFile()) {
+            outputs.file(input)
+        }
+    }
+}
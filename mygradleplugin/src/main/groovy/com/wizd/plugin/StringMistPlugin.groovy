@@ -2,28 +2,109 @@ package com.wizd.plugin
 
 
 import com.android.annotations.NonNull
+import com.android.build.gradle.LibraryExtension
+import com.wizd.mygradleplugin.ClassTransformStage
+import com.wizd.mygradleplugin.InterfaceConstants
+import com.wizd.mygradleplugin.JarMemoryCache
 import com.wizd.mygradleplugin.StringMistClassInjector
+import com.wizd.mygradleplugin.StringMistConfig
+import com.wizd.mygradleplugin.StringMistDryRun
+import com.wizd.mygradleplugin.StringMistMetrics
+import com.wizd.mygradleplugin.TransformCache
 import org.gradle.api.*
 
 import com.android.build.gradle.internal.pipeline.TransformManager
 import com.android.build.api.transform.*
 import com.android.utils.FileUtils
-import com.google.common.io.Files
-import groovy.io.FileType
 import com.wizd.mygradleplugin.MD5
 
+import java.nio.file.FileVisitResult
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.SimpleFileVisitor
+import java.nio.file.attribute.BasicFileAttributes
+
 class StringMistPlugin extends Transform implements Plugin<Project> {
 
     protected StringMistClassInjector mInjector
+    // variants in fast mode, which leaves jars alone
+    protected StringMistClassInjector mFastInjector
+    // full, fast or off by variant name, see StringMistExtension.modeFor
+    protected final Map<String, StringMistConfig.Mode> mVariantModes = new HashMap<>()
+    protected TransformCache mCache
+    // set with dryRun, each transform gets a StringMistDryRun of its own
+    protected StringMistConfig mDryRunConfig
     protected String nativeInterfaceClass
 
     StringMistPlugin(Project project){
+        def android = project.extensions.android
+        def variants = android instanceof LibraryExtension ? android.libraryVariants : android.applicationVariants
+        variants.all { variant ->
+            mVariantModes.put(variant.name, PluginImpl.modeOf(project, variant))
+        }
         project.afterEvaluate {
             nativeInterfaceClass = project.stringmist.nativeInterfaceClass.replace(".", "/")
-            String[] excludeClasses = project.stringmist.excludeClasses
-            String[] includeJars = project.stringmist.includeJars
-            this.mInjector = new StringMistClassInjector(nativeInterfaceClass, excludeClasses, includeJars)
+            // already encrypted by StringMistJarTransform when the dependency transform is on
+            String[] includeJars = StringMistDependencyTransform.isEnabled(project) ?
+                    new String[0] : project.stringmist.includeJars
+            StringMistConfig config = createConfig(project, includeJars)
+            if (project.stringmist.dryRun) {
+                // inputs are copied as they are, so the jars of includeJars are analyzed here
+                config.includeJars = project.stringmist.includeJars
+                this.mDryRunConfig = config
+                return
+            }
+            this.mInjector = createInjector(project, config)
+            StringMistConfig fastConfig = createConfig(project, new String[0])
+            fastConfig.mode = StringMistConfig.Mode.FAST
+            this.mFastInjector = createInjector(project, fastConfig)
+        }
+    }
+
+    private static StringMistConfig createConfig(Project project, String[] includeJars) {
+        StringMistConfig config = new StringMistConfig(
+                project.stringmist.nativeInterfaceClass.replace(".", "/"),
+                project.stringmist.excludeClasses as String[], includeJars)
+        config.seed = project.stringmist.seed
+        config.threads = project.stringmist.threads
+        config.jarMaxInFlight = project.stringmist.jarMaxInFlight
+        config.jarCompression = StringMistConfig.Compression.parse(project.stringmist.jarCompression)
+        config.rewriteMode = StringMistConfig.RewriteMode.parse(project.stringmist.rewriteMode)
+        config.hugeMethodLimit = project.stringmist.hugeMethodLimit
+        config.inlineLimit = project.stringmist.inlineLimit
+        config.methodSizePolicy = StringMistConfig.MethodSizePolicy.parse(project.stringmist.methodSizePolicy)
+        config.decMethodGranularity = StringMistConfig.DecMethodGranularity.parse(project.stringmist.decMethodGranularity)
+        config.sharedHolders = project.stringmist.sharedHolders
+        config.literalChunkSize = project.stringmist.literalChunkSize
+        config.canonicalStrings = project.stringmist.canonicalStrings
+        config.encryptLiterals = project.stringmist.encryptLiterals
+        config.skipLiterals = project.stringmist.skipLiterals
+        config.equalsGuards = project.stringmist.equalsGuards
+        config.lazyInterfaceConstants = project.stringmist.lazyInterfaceConstants
+        return config
+    }
+
+    private StringMistClassInjector createInjector(Project project, StringMistConfig config) {
+        StringMistClassInjector injector = new StringMistClassInjector(config)
+        project.stringmist.stages.each { ClassTransformStage stage ->
+            injector.addStage(stage)
         }
+
+        if (project.stringmist.cacheEnabled) {
+            if (mCache == null) {
+                File cacheDir = project.stringmist.cacheDir != null ?
+                        project.file(project.stringmist.cacheDir) :
+                        new File(project.gradle.gradleUserHomeDir, "caches/stringmist")
+                this.mCache = new TransformCache(cacheDir, project.stringmist.cacheMaxSize)
+            }
+            injector.setCache(mCache)
+        }
+        if (project.stringmist.memoryCacheEnabled) {
+            JarMemoryCache memoryCache = JarMemoryCache.getInstance()
+            memoryCache.setMaxSize(project.stringmist.memoryCacheMaxSize)
+            injector.setMemoryCache(memoryCache)
+        }
+        return injector
     }
 
     @Override
@@ -57,6 +138,20 @@ class StringMistPlugin extends Transform implements Plugin<Project> {
     void transform(@NonNull TransformInvocation transformInvocation) throws TransformException, InterruptedException, IOException {
         def dirInputs = new HashSet<>()
         def jarInputs = new HashSet<>()
+        StringMistMetrics metrics = new StringMistMetrics()
+        long start = System.nanoTime()
+        String variantName = transformInvocation.context.variantName
+        StringMistConfig.Mode mode = mVariantModes.get(variantName) ?: StringMistConfig.Mode.FULL
+        if (mode != StringMistConfig.Mode.FULL) {
+            println(String.format("StringMist: %s is built in %s mode", variantName, mode.name().toLowerCase(Locale.ROOT)))
+        }
+        // null copies every input, for off and the dry run
+        StringMistClassInjector injector = mode == StringMistConfig.Mode.OFF ? null :
+                mode == StringMistConfig.Mode.FAST ? mFastInjector : mInjector
+        if (injector != null) {
+            injector.setMetrics(metrics)
+        }
+        StringMistDryRun dryRun = mDryRunConfig != null ? new StringMistDryRun(mDryRunConfig) : null
 
         if (!transformInvocation.isIncremental()) {
             transformInvocation.getOutputProvider().deleteAll()
@@ -77,18 +172,29 @@ class StringMistPlugin extends Transform implements Plugin<Project> {
 //            mMappingPrinter.ouputInfo(mKey, mImplementation)
 //        }
 
+        if (injector != null) {
+            // every class of the run has to know the interface constants before the first one is
+            // rewritten; jars are only transformed in full mode
+            List<File> indexed = dirInputs.collect { it.file }
+            if (mode == StringMistConfig.Mode.FULL) {
+                indexed.addAll(jarInputs.findAll { it.status != Status.REMOVED }.collect { it.file })
+            }
+            injector.indexInterfaceConstants(indexed)
+        }
+
         if (!dirInputs.isEmpty() || !jarInputs.isEmpty()) {
             File dirOutput = transformInvocation.outputProvider.getContentLocation(
                     "classes", getOutputTypes(), getScopes(), Format.DIRECTORY)
             FileUtils.mkdirs(dirOutput)
             if (!dirInputs.isEmpty()) {
                 dirInputs.each { dirInput ->
+                    Path root = dirInput.file.toPath()
                     if (transformInvocation.incremental) {
+                        Set<File> createdDirs = new HashSet<>()
                         dirInput.changedFiles.each { entry ->
                             File fileInput = entry.getKey()
-                            File fileOutput = new File(fileInput.getAbsolutePath().replace(
-                                    dirInput.file.getAbsolutePath(), dirOutput.getAbsolutePath()))
-                            FileUtils.mkdirs(fileOutput.parentFile)
+                            Path relative = root.relativize(fileInput.toPath())
+                            File fileOutput = dirOutput.toPath().resolve(relative).toFile()
                             Status fileStatus = entry.getValue()
                             switch(fileStatus) {
                                 case Status.ADDED:
@@ -96,10 +202,13 @@ class StringMistPlugin extends Transform implements Plugin<Project> {
                                     if (fileInput.isDirectory()) {
                                         return // continue.
                                     }
-                                    if (mInjector != null && fileInput.getName().endsWith('.class')) {
-                                        mInjector.doFog2Class(fileInput, fileOutput)
+                                    if (createdDirs.add(fileOutput.parentFile)) {
+                                        Files.createDirectories(fileOutput.parentFile.toPath())
+                                    }
+                                    if (injector != null) {
+                                        injector.doFog2File(relative, fileInput, fileOutput)
                                     } else {
-                                        Files.copy(fileInput, fileOutput)
+                                        StringMistClassInjector.linkOrCopy(fileInput.toPath(), fileOutput.toPath())
                                     }
                                     break
                                 case Status.REMOVED:
@@ -108,21 +217,35 @@ class StringMistPlugin extends Transform implements Plugin<Project> {
                                             fileOutput.deleteDir()
                                         } else {
                                             fileOutput.delete()
+                                            // and the holder written next to it, if it was an interface
+                                            new File(fileOutput.parentFile, fileOutput.name.replaceFirst(/\.class$/,
+                                                    InterfaceConstants.HOLDER_SUFFIX + '.class')).delete()
                                         }
                                     }
                                     break
                             }
                         }
+                    } else if (injector != null) {
+                        injector.doFog2Directory(dirInput.file, dirOutput)
                     } else {
-                        dirInput.file.traverse(type: FileType.FILES) { fileInput ->
-                            File fileOutput = new File(fileInput.getAbsolutePath().replace(dirInput.file.getAbsolutePath(), dirOutput.getAbsolutePath()))
-                            FileUtils.mkdirs(fileOutput.parentFile)
-                            if (mInjector != null && fileInput.getName().endsWith('.class')) {
-                                mInjector.doFog2Class(fileInput, fileOutput)
-                            } else {
-                                Files.copy(fileInput, fileOutput)
+                        // off or dry run, inputs go through as they are
+                        Path outRoot = dirOutput.toPath()
+                        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                            @Override
+                            FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                                Files.createDirectories(outRoot.resolve(root.relativize(dir)))
+                                return FileVisitResult.CONTINUE
                             }
-                        }
+
+                            @Override
+                            FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                                StringMistClassInjector.linkOrCopy(file, outRoot.resolve(root.relativize(file)))
+                                if (dryRun != null && file.fileName.toString().endsWith('.class')) {
+                                    dryRun.analyzeClass(file.toFile())
+                                }
+                                return FileVisitResult.CONTINUE
+                            }
+                        })
                     }
                 }
             }
@@ -143,10 +266,13 @@ class StringMistPlugin extends Transform implements Plugin<Project> {
                             }
                         case Status.ADDED:
                         case Status.CHANGED:
-                            if (mInjector != null) {
-                                mInjector.doFog2Jar(jarInputFile, jarOutputFile)
+                            if (injector != null && mode == StringMistConfig.Mode.FULL) {
+                                injector.doFog2Jar(jarInputFile, jarOutputFile)
                             } else {
-                                Files.copy(jarInputFile, jarOutputFile)
+                                StringMistClassInjector.linkOrCopy(jarInputFile.toPath(), jarOutputFile.toPath())
+                                if (dryRun != null) {
+                                    dryRun.analyzeJar(jarInputFile)
+                                }
                             }
                             break
                         case Status.REMOVED:
@@ -157,6 +283,33 @@ class StringMistPlugin extends Transform implements Plugin<Project> {
                     }
                 }
             }
+
+            if (injector != null) {
+                injector.writeHolders(dirOutput)
+            }
+        }
+
+        if (injector != null) {
+            injector.shutdown()
+        }
+        if (mCache != null) {
+            mCache.trim()
+        }
+
+        if (dryRun != null) {
+            try {
+                print(dryRun.report())
+            } finally {
+                dryRun.shutdown()
+            }
+        } else {
+            print(metrics.report())
+        }
+        println(String.format("  wall time: %d ms", (long) ((System.nanoTime() - start) / 1000000)))
+        // the classes went through unencrypted, they must not end up in an apk
+        if (dryRun != null) {
+            throw new TransformException(String.format(
+                    "StringMist: dryRun is set, %s is not packaged. Remove dryRun to build it.", variantName))
         }
     }
 
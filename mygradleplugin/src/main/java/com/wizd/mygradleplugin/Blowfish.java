@@ -3,6 +3,11 @@ package com.wizd.mygradleplugin;
 import java.security.MessageDigest;
 import java.util.Random;
 
+/**
+ * Blowfish CBC with the modified boxes native-lib decrypts with. One instance can be rekeyed with
+ * {@link #setKey(byte[])} and encrypt into caller buffers, so bulk encryption at build time does not
+ * allocate boxes or buffers per literal. Not thread safe.
+ */
 public class Blowfish {
     private static class BlowfishCBC extends BlowfishECB {
 
@@ -35,23 +40,22 @@ public class Blowfish {
         }
 
         public void encrypt(byte buffer[]) {
-            int nLen = buffer.length;
-            for (int nI = 0; nI < nLen; nI += 8) {
-                long lTemp = Blowfish.byteArrayToLong(buffer, nI);
-                lTemp = encryptBlockCBC(lTemp);
-                Blowfish.longToByteArray(lTemp, buffer, nI);
-            }
+            encrypt(buffer, 0, buffer.length);
+        }
 
+        public void encrypt(byte buffer[], int nOffset, int nLen) {
+            // big endian longs, the block layout native-lib reads
+            int nEnd = nOffset + nLen;
+            for (int nI = nOffset; nI < nEnd; nI += 8) {
+                Blowfish.longToByteArray(encryptBlockCBC(Blowfish.byteArrayToLong(buffer, nI)), buffer, nI);
+            }
         }
 
         public void decrypt(byte buffer[]) {
             int nLen = buffer.length;
             for (int nI = 0; nI < nLen; nI += 8) {
-                long lTemp = Blowfish.byteArrayToLong(buffer, nI);
-                lTemp = decryptBlockCBC(lTemp);
-                Blowfish.longToByteArray(lTemp, buffer, nI);
+                Blowfish.longToByteArray(decryptBlockCBC(Blowfish.byteArrayToLong(buffer, nI)), buffer, nI);
             }
-
         }
 
         long m_lCBCIV;
@@ -437,20 +441,20 @@ public class Blowfish {
 
         public BlowfishECB(byte bfkey[]) {
             m_pbox = new int[18];
-            for (int nI = 0; nI < 18; nI++) {
-                m_pbox[nI] = pbox_init[nI];
-            }
-
             m_sbox1 = new int[256];
             m_sbox2 = new int[256];
             m_sbox3 = new int[256];
             m_sbox4 = new int[256];
-            for (int nI = 0; nI < 256; nI++) {
-                m_sbox1[nI] = sbox_init_1[nI];
-                m_sbox2[nI] = sbox_init_2[nI];
-                m_sbox3[nI] = sbox_init_3[nI];
-                m_sbox4[nI] = sbox_init_4[nI];
-            }
+            setKey(bfkey);
+        }
+
+        // Runs the key schedule again on the boxes of this instance.
+        public void setKey(byte bfkey[]) {
+            System.arraycopy(pbox_init, 0, m_pbox, 0, 18);
+            System.arraycopy(sbox_init_1, 0, m_sbox1, 0, 256);
+            System.arraycopy(sbox_init_2, 0, m_sbox2, 0, 256);
+            System.arraycopy(sbox_init_3, 0, m_sbox3, 0, 256);
+            System.arraycopy(sbox_init_4, 0, m_sbox4, 0, 256);
 
             int nLen = bfkey.length;
             if (nLen == 0) {
@@ -519,6 +523,21 @@ public class Blowfish {
         m_bfish = new BlowfishCBC(password, 0L);
     }
 
+    /**
+     * Replaces the key, reusing the boxes of this instance.
+     */
+    public void setKey(byte[] password) {
+        m_bfish.setKey(password);
+    }
+
+    /**
+     * @return size of IV + ciphertext {@link #encryptBytes(byte[], int, int, long, byte[], int)}
+     *         writes for plainLength bytes
+     */
+    public static int encryptedLength(int plainLength) {
+        return 8 + (plainLength & -8) + 16;
+    }
+
     public String encryptString(String sPlainText) {
         long lCBCIV;
         synchronized (m_rndGen) {
@@ -535,6 +554,10 @@ public class Blowfish {
         return encBytes(sPlain, lCBCIV);
     }
 
+    public byte[] encryptBytes(byte[] sPlain, long lCBCIV) {
+        return encBytes(sPlain, lCBCIV);
+    }
+
     private String encStr(String sPlainText, long lNewCBCIV) {
         int nStrLen = sPlainText.length();
         byte buf[] = new byte[(nStrLen << 1 & -8) + 8];
@@ -556,24 +579,31 @@ public class Blowfish {
         return bytesToBinHex(newCBCIV, 0, 8) + bytesToBinHex(buf, 0, buf.length);
     }
 
-    private byte[] encBytes(byte[] sPlain, long lNewCBCIV) {
-        int nStrLen = sPlain.length;
-        byte[] buf = new byte[(nStrLen & -8) + 8 + 8];
-        int nPos = nStrLen;
-        System.arraycopy(sPlain, 0, buf, 0, nStrLen);
-
-        byte bPadVal = (byte) (sPlain[nStrLen-1] ^ 0xCC);
-        while (nPos < buf.length) {
-            buf[nPos++] = bPadVal;
-        }
-        m_bfish.setCBCIV(lNewCBCIV);
-        m_bfish.encrypt(buf);
-        byte[] newCBCIV = new byte[8];
-        longToByteArray(lNewCBCIV, newCBCIV, 0);
+    /**
+     * Writes IV + ciphertext of sPlain[nOffset, nOffset + nLen) to out at nOutOffset, out needs
+     * {@link #encryptedLength(int)} bytes from there. nLen must not be 0.
+     *
+     * @return number of bytes written
+     */
+    public int encryptBytes(byte[] sPlain, int nOffset, int nLen, long lCBCIV, byte[] out, int nOutOffset) {
+        int nOutLen = encryptedLength(nLen);
+        longToByteArray(lCBCIV, out, nOutOffset);
+        int nPos = nOutOffset + 8;
+        System.arraycopy(sPlain, nOffset, out, nPos, nLen);
+
+        // 9 to 16 bytes, native-lib strips every trailing byte equal to the last one
+        byte bPadVal = (byte) (sPlain[nOffset + nLen - 1] ^ 0xCC);
+        for (int nI = nPos + nLen; nI < nOutOffset + nOutLen; nI++) {
+            out[nI] = bPadVal;
+        }
+        m_bfish.setCBCIV(lCBCIV);
+        m_bfish.encrypt(out, nPos, nOutLen - 8);
+        return nOutLen;
+    }
 
-        byte[] ret = new byte[8 + buf.length];
-        longToByteArray(lNewCBCIV, ret, 0);
-        System.arraycopy(buf, 0, ret, 8, buf.length);
+    private byte[] encBytes(byte[] sPlain, long lNewCBCIV) {
+        byte[] ret = new byte[encryptedLength(sPlain.length)];
+        encryptBytes(sPlain, 0, sPlain.length, lNewCBCIV, ret, 0);
         return ret;
     }
 
@@ -0,0 +1,202 @@
+package com.wizd.mygradleplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Class name rules compiled once and matched against internal class names (com/foo/Bar$1).
+ *
+ * <ul>
+ * <li>{@code com.foo.Bar}: exactly that class</li>
+ * <li>{@code com.foo.*}: classes directly in package com.foo</li>
+ * <li>{@code com.foo.**}: classes in com.foo and its sub packages</li>
+ * <li>{@code Bar}, {@code R$*}: rules without a package match the simple name in any package</li>
+ * <li>anything else with {@code *}, {@code **} or {@code ?} is a glob, e.g. {@code com.foo.*Activity}</li>
+ * </ul>
+ *
+ * Exact and package rules live in a trie of package segments, so the cost of a lookup depends on
+ * the depth of the package, not on the number of rules. Only real globs are tried one by one.
+ */
+public class ClassMatcher {
+
+    private static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        // simple class name -> rule
+        final Map<String, String> classes = new HashMap<>();
+        String packageRule;
+        String subtreeRule;
+    }
+
+    private static class Glob {
+        final Pattern pattern;
+        final String rule;
+
+        Glob(Pattern pattern, String rule) {
+            this.pattern = pattern;
+            this.rule = rule;
+        }
+    }
+
+    private final List<String> rules = new ArrayList<>();
+    // rule -> position in rules
+    private final Map<String, Integer> order = new HashMap<>();
+    private final Node root = new Node();
+    private final Map<String, String> simpleNames = new HashMap<>();
+    private final List<Glob> simpleNameGlobs = new ArrayList<>();
+    private final List<Glob> globs = new ArrayList<>();
+
+    public ClassMatcher(String[] rules) {
+        for (String rule : rules) {
+            add(rule.trim());
+        }
+    }
+
+    private void add(String rule) {
+        if (rule.isEmpty() || order.containsKey(rule)) {
+            return;
+        }
+        order.put(rule, rules.size());
+        rules.add(rule);
+
+        int lastDot = rule.lastIndexOf('.');
+        if (lastDot < 0) {
+            if (isGlob(rule)) {
+                simpleNameGlobs.add(new Glob(Pattern.compile(globToRegex(rule)), rule));
+            } else {
+                simpleNames.put(rule, rule);
+            }
+            return;
+        }
+
+        String packageName = rule.substring(0, lastDot);
+        String last = rule.substring(lastDot + 1);
+        if (isGlob(packageName)) {
+            globs.add(new Glob(Pattern.compile(globToRegex(rule.replace('.', '/'))), rule));
+        } else if ("**".equals(last)) {
+            nodeFor(packageName).subtreeRule = rule;
+        } else if ("*".equals(last)) {
+            nodeFor(packageName).packageRule = rule;
+        } else if (isGlob(last)) {
+            globs.add(new Glob(Pattern.compile(globToRegex(rule.replace('.', '/'))), rule));
+        } else {
+            nodeFor(packageName).classes.put(last, rule);
+        }
+    }
+
+    private Node nodeFor(String packageName) {
+        Node node = root;
+        for (String segment : packageName.split("\\.")) {
+            Node child = node.children.get(segment);
+            if (child == null) {
+                child = new Node();
+                node.children.put(segment, child);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    public List<String> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * @param internalName class name with '/' separators, as in the class file
+     * @return the first rule in rule order that matches, null if none does
+     */
+    public String match(String internalName) {
+        int lastSlash = internalName.lastIndexOf('/');
+        String simpleName = internalName.substring(lastSlash + 1);
+
+        String match = null;
+        Node node = root;
+        int start = 0;
+        while (node != null) {
+            match = first(match, node.subtreeRule);
+            if (start > lastSlash) {
+                match = first(match, node.classes.get(simpleName));
+                match = first(match, node.packageRule);
+                break;
+            }
+            int slash = internalName.indexOf('/', start);
+            node = node.children.get(internalName.substring(start, slash));
+            start = slash + 1;
+        }
+
+        match = first(match, simpleNames.get(simpleName));
+        // globs are kept in rule order, so the first one that matches is the only candidate
+        for (Glob glob : simpleNameGlobs) {
+            if (match != null && order.get(glob.rule) > order.get(match)) {
+                break;
+            }
+            if (glob.pattern.matcher(simpleName).matches()) {
+                match = glob.rule;
+                break;
+            }
+        }
+        for (Glob glob : globs) {
+            if (match != null && order.get(glob.rule) > order.get(match)) {
+                break;
+            }
+            if (glob.pattern.matcher(internalName).matches()) {
+                match = glob.rule;
+                break;
+            }
+        }
+        return match;
+    }
+
+    private String first(String a, String b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        return order.get(a) <= order.get(b) ? a : b;
+    }
+
+    static boolean isGlob(String s) {
+        return s.indexOf('*') >= 0 || s.indexOf('?') >= 0;
+    }
+
+    /**
+     * '**' crosses '/' boundaries, '*' and '?' do not.
+     */
+    static String globToRegex(String glob) {
+        StringBuilder sb = new StringBuilder();
+        int literalStart = 0;
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c != '*' && c != '?') {
+                continue;
+            }
+            if (literalStart < i) {
+                sb.append(Pattern.quote(glob.substring(literalStart, i)));
+            }
+            if (c == '?') {
+                sb.append("[^/]");
+            } else if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                i++;
+                if (i + 1 < glob.length() && glob.charAt(i + 1) == '/') {
+                    // com/**/Bar also matches com/Bar
+                    i++;
+                    sb.append("(?:.*/)?");
+                } else {
+                    sb.append(".*");
+                }
+            } else {
+                sb.append("[^/]*");
+            }
+            literalStart = i + 1;
+        }
+        if (literalStart < glob.length()) {
+            sb.append(Pattern.quote(glob.substring(literalStart)));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,40 @@
+package com.wizd.mygradleplugin;
+
+import org.objectweb.asm.ClassVisitor;
+
+/**
+ * A bytecode transform that runs in StringMist's pass over a class instead of a pass of its own,
+ * see {@link StringMistClassInjector#addStage(ClassTransformStage)}. The class is parsed once by
+ * one ClassReader and written once by one ClassWriter:
+ *
+ * <pre>
+ * ClassReader -> stage 1 -> ... -> stage n -> StringMistClassVisitor -> ClassWriter
+ * </pre>
+ *
+ * Stages come before StringMist, so literals they add are encrypted like the others. Stages only
+ * see the classes StringMist transforms, not excluded classes, and they are called from several
+ * threads at once.
+ */
+public interface ClassTransformStage {
+    /**
+     * @param className internal name of the class
+     * @param next      the rest of the chain
+     * @return the visitor of this stage in front of next, or next itself to leave the class alone
+     */
+    ClassVisitor wrap(String className, ClassVisitor next);
+
+    /**
+     * COMPUTE_FRAMES is rejected: the writer can't load the app's classes to merge their types. A
+     * stage that adds branches or handlers visits the frames for them itself, compressed in light
+     * rewrite mode and expanded otherwise.
+     *
+     * @return ClassWriter.COMPUTE_MAXS when the stage changes the stack or locals, 0 otherwise
+     */
+    int writerFlags();
+
+    /**
+     * @return a string that changes whenever the output of the stage changes, it becomes part of
+     *         the cache key of transformed classes and jars; null turns those caches off
+     */
+    String fingerprint();
+}
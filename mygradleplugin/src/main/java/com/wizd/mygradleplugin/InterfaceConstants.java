@@ -0,0 +1,127 @@
+package com.wizd.mygradleplugin;
+
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The String constants that lazyInterfaceConstants takes out of interfaces: static final fields
+ * with a constant value whose literal would be encrypted. Built from every input of a run before
+ * the first class is transformed, because the classes that read a constant are rewritten to call
+ * {@code <interface>$StrMist.<field>()} instead, which decrypts it on the first call and caches it.
+ * The fields themselves stay, but are never set, so reads the run does not rewrite see null.
+ */
+public class InterfaceConstants {
+    public static final String HOLDER_SUFFIX = "$StrMist";
+
+    private static final int CONSTANT_FIELDREF = 9;
+
+    // owner + '.' + name
+    private final Set<String> fields = new TreeSet<>();
+    private final Set<String> owners = new HashSet<>();
+    private String fingerprint;
+
+    /**
+     * Adds the constants of cr if it is an interface. Not thread safe, index every input before
+     * the index is handed to a transform.
+     *
+     * @param policy the literal policy of the run, null encrypts every literal
+     */
+    public void add(ClassReader cr, final LiteralPolicy policy) {
+        if ((cr.getAccess() & Opcodes.ACC_INTERFACE) == 0) {
+            return;
+        }
+        final String owner = cr.getClassName();
+        // annotations are visited before the fields
+        final Set<String> annotations = new HashSet<>();
+        cr.accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+                annotations.add(desc);
+                return null;
+            }
+
+            @Override
+            public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+                if ((access & Opcodes.ACC_STATIC) != 0 && (access & Opcodes.ACC_FINAL) != 0
+                        && ClassStringField.STRING_DESC.equals(desc) && value instanceof String
+                        && StringMistClassVisitor.isEncryptable((String) value)
+                        && (policy == null || policy.accepts((String) value, false, annotations))) {
+                    fields.add(owner + '.' + name);
+                    owners.add(owner);
+                    fingerprint = null;
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+    }
+
+    public boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    public boolean contains(String owner, String name) {
+        return owners.contains(owner) && fields.contains(owner + '.' + name);
+    }
+
+    /**
+     * @return true if interfaceName has constants, and so gets a holder
+     */
+    public boolean hasHolder(String interfaceName) {
+        return owners.contains(interfaceName);
+    }
+
+    public static String holderName(String interfaceName) {
+        return interfaceName + HOLDER_SUFFIX;
+    }
+
+    /**
+     * @return true if the constant pool of cr refers to one of the constants, such classes have
+     *         to be rewritten even when they hold no literal
+     */
+    public boolean isReferencedBy(ClassReader cr) {
+        if (owners.isEmpty()) {
+            return false;
+        }
+        char[] buf = null;
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            // getItem is 0 for the unused slot after a long or double
+            if (offset == 0 || cr.readByte(offset - 1) != CONSTANT_FIELDREF) {
+                continue;
+            }
+            if (buf == null) {
+                buf = new char[cr.getMaxStringLength()];
+            }
+            String owner = cr.readClass(offset, buf);
+            if (owners.contains(owner)) {
+                int nameAndType = cr.getItem(cr.readUnsignedShort(offset + 2));
+                if (fields.contains(owner + '.' + cr.readUTF8(nameAndType, buf))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return digest of the constants, part of the cache key of every class that reads one
+     */
+    public String fingerprint() {
+        if (fingerprint == null) {
+            StringBuilder sb = new StringBuilder();
+            for (String field : fields) {
+                sb.append(field).append('\n');
+            }
+            fingerprint = MD5.getMessageDigest(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return fingerprint;
+    }
+}
@@ -0,0 +1,44 @@
+package com.wizd.mygradleplugin;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * includeJars rules compiled once. A rule with {@code *} or {@code ?} is a glob on the jar file
+ * name (okhttp-*.jar), any other rule matches names ending with it (okhttp.jar).
+ */
+public class JarMatcher {
+    private final List<String> rules = new ArrayList<>();
+    // glob of each rule, null for suffix rules
+    private final List<Pattern> patterns = new ArrayList<>();
+
+    public JarMatcher(String[] rules) {
+        for (String rule : rules) {
+            rule = rule.trim();
+            if (rule.isEmpty() || this.rules.contains(rule)) {
+                continue;
+            }
+            this.rules.add(rule);
+            patterns.add(ClassMatcher.isGlob(rule) ? Pattern.compile(ClassMatcher.globToRegex(rule)) : null);
+        }
+    }
+
+    public List<String> getRules() {
+        return Collections.unmodifiableList(rules);
+    }
+
+    /**
+     * @return the first rule in rule order that matches the jar file name, null if none does
+     */
+    public String match(String jarName) {
+        for (int i = 0; i < rules.size(); i++) {
+            Pattern pattern = patterns.get(i);
+            if (pattern == null ? jarName.endsWith(rules.get(i)) : pattern.matcher(jarName).matches()) {
+                return rules.get(i);
+            }
+        }
+        return null;
+    }
+}
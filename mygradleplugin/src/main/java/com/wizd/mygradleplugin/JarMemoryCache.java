@@ -0,0 +1,142 @@
+package com.wizd.mygradleplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Transformed jars kept in memory for the lifetime of the Gradle daemon.
+ *
+ * Lives in a static field of the plugin classloader, which Gradle keeps while the buildscript
+ * classpath does not change, so the debug, release and flavor variants of one build as well as the
+ * following builds in the same daemon transform each dependency jar only once. Keys are the same
+ * content hashes as {@link TransformCache}. Small results are held as bytes, bounded by
+ * {@link #setMaxSize(long)}. For every result we also remember where it was written and hardlink
+ * to that file while it is still there untouched.
+ */
+public final class JarMemoryCache {
+    private static final JarMemoryCache INSTANCE = new JarMemoryCache();
+
+    private static class Entry {
+        byte[] bytes;
+        File output;
+        long outputLength;
+        long outputLastModified;
+    }
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long maxSize = 256L * 1024 * 1024;
+    private long size;
+
+    // tests use instances of their own
+    JarMemoryCache() {
+    }
+
+    public static JarMemoryCache getInstance() {
+        return INSTANCE;
+    }
+
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    public boolean fetch(String key, File output) {
+        Entry entry;
+        // evict() drops the bytes under the lock
+        byte[] bytes;
+        synchronized (this) {
+            entry = entries.get(key);
+            bytes = entry != null ? entry.bytes : null;
+        }
+        if (entry == null) {
+            return false;
+        }
+
+        try {
+            if (!output.equals(entry.output)) {
+                Files.deleteIfExists(output.toPath());
+            }
+            if (isIntact(entry)) {
+                if (output.equals(entry.output)) {
+                    return true;
+                }
+                try {
+                    Files.createLink(output.toPath(), entry.output.toPath());
+                    return true;
+                } catch (IOException | UnsupportedOperationException e) {
+                    // Cross device or no hardlink support, fall back to the bytes or a copy.
+                }
+            }
+            if (bytes != null) {
+                Files.write(output.toPath(), bytes);
+                return true;
+            }
+            if (isIntact(entry)) {
+                Files.copy(entry.output.toPath(), output.toPath());
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println(String.format("StringMist memory cache: failed to restore %s, %s", output, e));
+            return false;
+        }
+
+        synchronized (this) {
+            entries.remove(key);
+        }
+        return false;
+    }
+
+    public void store(String key, File output) {
+        Entry entry = new Entry();
+        entry.output = output;
+        entry.outputLength = output.length();
+        entry.outputLastModified = output.lastModified();
+        // A single jar may take a quarter of the budget at most, bigger ones are only hardlinked.
+        if (entry.outputLength <= maxSize / 4) {
+            try {
+                entry.bytes = Files.readAllBytes(output.toPath());
+            } catch (IOException e) {
+                // Keep the hardlink only.
+            }
+        }
+
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null && old.bytes != null) {
+                size -= old.bytes.length;
+            }
+            if (entry.bytes != null) {
+                size += entry.bytes.length;
+            }
+            evict();
+        }
+    }
+
+    synchronized int entryCount() {
+        return entries.size();
+    }
+
+    // Drops the bytes of the least recently used entries, and the entries nothing can be restored from.
+    private void evict() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next().getValue();
+            if (size > maxSize && entry.bytes != null) {
+                size -= entry.bytes.length;
+                entry.bytes = null;
+            }
+            if (entry.bytes == null && !isIntact(entry)) {
+                it.remove();
+            }
+        }
+    }
+
+    private static boolean isIntact(Entry entry) {
+        return entry.output.isFile() && entry.output.length() == entry.outputLength
+                && entry.output.lastModified() == entry.outputLastModified;
+    }
+}
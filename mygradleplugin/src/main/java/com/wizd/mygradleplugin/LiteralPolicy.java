@@ -0,0 +1,249 @@
+package com.wizd.mygradleplugin;
+
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Selects the literals worth a decrypt call. Rules of encryptLiterals and skipLiterals:
+ *
+ * <ul>
+ * <li>{@code regex:<pattern>}: the whole literal matches the Java regex</li>
+ * <li>{@code entropy:<bits>}: Shannon entropy of at least that many bits per character</li>
+ * <li>{@code url}: contains a scheme, like {@code https://} or {@code content://}</li>
+ * <li>{@code host}: a host name or IPv4 address, optionally with a port</li>
+ * <li>{@code key}: 16 or more base64 or hex characters mixing letters and digits</li>
+ * <li>{@code log}: passed to android.util.Log, Timber, slf4j, java.util.logging or a PrintStream,
+ *     directly or while a message is built around it, see {@link #logArguments(InsnList)}</li>
+ * <li>{@code annotation:<class>}: the enclosing method or class carries that annotation</li>
+ * </ul>
+ *
+ * A literal is encrypted when encryptLiterals is empty or one of its rules matches, and no rule of
+ * skipLiterals does. log and annotation need the method around the literal, see
+ * {@link #needsContext()}.
+ */
+public class LiteralPolicy {
+    private static final Pattern URL = Pattern.compile("[a-zA-Z][a-zA-Z0-9+.-]*://\\S+");
+    private static final Pattern HOST = Pattern.compile(
+            "(?:[a-zA-Z0-9](?:[a-zA-Z0-9-]*[a-zA-Z0-9])?\\.)+(?:[a-zA-Z]{2,}|[0-9]{1,3})(?::[0-9]{1,5})?");
+    private static final Pattern KEY = Pattern.compile("[A-Za-z0-9+/_-]{16,}={0,2}");
+    private static final Pattern LETTER = Pattern.compile("[A-Za-z]");
+    private static final Pattern DIGIT = Pattern.compile("[0-9]");
+
+    // owners of the calls the log rule treats as logging, any method of them
+    private static final Set<String> LOG_OWNERS = new HashSet<>(Arrays.asList(
+            "android/util/Log", "timber/log/Timber", "timber/log/Timber$Tree", "org/slf4j/Logger",
+            "java/util/logging/Logger", "java/io/PrintStream"));
+
+    private enum Kind {
+        REGEX, ENTROPY, URL, HOST, KEY, LOG, ANNOTATION
+    }
+
+    private static class Rule {
+        final Kind kind;
+        final Pattern pattern;
+        final double bits;
+        // annotation descriptor, Lcom/foo/Bar;
+        final String annotation;
+
+        Rule(Kind kind, Pattern pattern, double bits, String annotation) {
+            this.kind = kind;
+            this.pattern = pattern;
+            this.bits = bits;
+            this.annotation = annotation;
+        }
+    }
+
+    private final List<Rule> encryptRules;
+    private final List<Rule> skipRules;
+    private final boolean needsContext;
+
+    public LiteralPolicy(String[] encryptRules, String[] skipRules) {
+        this.encryptRules = parse(encryptRules);
+        this.skipRules = parse(skipRules);
+        boolean context = false;
+        for (Rule rule : this.encryptRules) {
+            context |= rule.kind == Kind.LOG || rule.kind == Kind.ANNOTATION;
+        }
+        for (Rule rule : this.skipRules) {
+            context |= rule.kind == Kind.LOG || rule.kind == Kind.ANNOTATION;
+        }
+        this.needsContext = context;
+    }
+
+    private static List<Rule> parse(String[] rules) {
+        if (rules == null || rules.length == 0) {
+            return Collections.emptyList();
+        }
+        List<Rule> parsed = new ArrayList<>();
+        for (String rule : rules) {
+            rule = rule.trim();
+            if (rule.isEmpty()) {
+                continue;
+            }
+            int colon = rule.indexOf(':');
+            String name = (colon < 0 ? rule : rule.substring(0, colon)).toLowerCase(Locale.ROOT);
+            String argument = colon < 0 ? null : rule.substring(colon + 1);
+            if ("regex".equals(name) && argument != null) {
+                parsed.add(new Rule(Kind.REGEX, Pattern.compile(argument), 0, null));
+            } else if ("entropy".equals(name) && argument != null) {
+                parsed.add(new Rule(Kind.ENTROPY, null, Double.parseDouble(argument.trim()), null));
+            } else if ("annotation".equals(name) && argument != null) {
+                parsed.add(new Rule(Kind.ANNOTATION, null, 0, "L" + argument.trim().replace('.', '/') + ";"));
+            } else if (argument == null && ("url".equals(name) || "host".equals(name) || "key".equals(name)
+                    || "log".equals(name))) {
+                parsed.add(new Rule(Kind.valueOf(name.toUpperCase(Locale.ROOT)), null, 0, null));
+            } else {
+                throw new IllegalArgumentException("unknown literal rule " + rule);
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * @return false when every rule only looks at the literal itself, or there are none
+     */
+    public boolean needsContext() {
+        return needsContext;
+    }
+
+    public boolean isEmpty() {
+        return encryptRules.isEmpty() && skipRules.isEmpty();
+    }
+
+    /**
+     * @param logArgument the literal is passed to a logging call, see {@link #logArguments(InsnList)}
+     * @param annotations descriptors of the annotations of the enclosing method and class
+     */
+    public boolean accepts(String value, boolean logArgument, Set<String> annotations) {
+        if (!encryptRules.isEmpty() && !matchesAny(encryptRules, value, logArgument, annotations)) {
+            return false;
+        }
+        return !matchesAny(skipRules, value, logArgument, annotations);
+    }
+
+    private static boolean matchesAny(List<Rule> rules, String value, boolean logArgument, Set<String> annotations) {
+        for (Rule rule : rules) {
+            if (matches(rule, value, logArgument, annotations)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matches(Rule rule, String value, boolean logArgument, Set<String> annotations) {
+        switch (rule.kind) {
+            case REGEX:
+                return rule.pattern.matcher(value).matches();
+            case ENTROPY:
+                return entropy(value) >= rule.bits;
+            case URL:
+                return URL.matcher(value).find();
+            case HOST:
+                return HOST.matcher(value).matches();
+            case KEY:
+                return KEY.matcher(value).matches() && LETTER.matcher(value).find() && DIGIT.matcher(value).find();
+            case LOG:
+                return logArgument;
+            case ANNOTATION:
+                return annotations != null && annotations.contains(rule.annotation);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return Shannon entropy in bits per character
+     */
+    static double entropy(String value) {
+        if (value.isEmpty()) {
+            return 0;
+        }
+        Map<Character, Integer> counts = new HashMap<>();
+        for (int i = 0; i < value.length(); i++) {
+            Character c = value.charAt(i);
+            Integer count = counts.get(c);
+            counts.put(c, count == null ? 1 : count + 1);
+        }
+        double entropy = 0;
+        for (int count : counts.values()) {
+            double p = (double) count / value.length();
+            entropy -= p * Math.log(p) / Math.log(2);
+        }
+        return entropy;
+    }
+
+    /**
+     * Finds the literals a method passes to logging calls. A literal counts when a logging call
+     * follows it with nothing in between but StringBuilder calls, string concatenation,
+     * String.format, boxing or other valueOf and toString calls of java.lang; any other call or a
+     * jump ends the search. A literal with several uses in the method counts when one of them is
+     * logged.
+     */
+    public static Set<String> logArguments(InsnList instructions) {
+        Set<String> logged = new HashSet<>();
+        List<String> pending = new ArrayList<>();
+        for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+            switch (insn.getType()) {
+                case AbstractInsnNode.LDC_INSN:
+                    if (((LdcInsnNode) insn).cst instanceof String) {
+                        pending.add((String) ((LdcInsnNode) insn).cst);
+                    }
+                    break;
+                case AbstractInsnNode.METHOD_INSN:
+                    MethodInsnNode call = (MethodInsnNode) insn;
+                    if (LOG_OWNERS.contains(call.owner)) {
+                        logged.addAll(pending);
+                        pending.clear();
+                    } else if (!buildsMessage(call)) {
+                        pending.clear();
+                    }
+                    break;
+                case AbstractInsnNode.INVOKE_DYNAMIC_INSN:
+                    if (!"makeConcatWithConstants".equals(((InvokeDynamicInsnNode) insn).name)) {
+                        pending.clear();
+                    }
+                    break;
+                case AbstractInsnNode.JUMP_INSN:
+                case AbstractInsnNode.TABLESWITCH_INSN:
+                case AbstractInsnNode.LOOKUPSWITCH_INSN:
+                    pending.clear();
+                    break;
+                case AbstractInsnNode.INSN:
+                    int opcode = insn.getOpcode();
+                    if (opcode == Opcodes.ATHROW || opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN) {
+                        pending.clear();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return logged;
+    }
+
+    private static boolean buildsMessage(MethodInsnNode call) {
+        if ("java/lang/StringBuilder".equals(call.owner)) {
+            return true;
+        }
+        if ("java/lang/String".equals(call.owner) && ("format".equals(call.name) || "concat".equals(call.name))) {
+            return true;
+        }
+        // boxing of format arguments and String.valueOf
+        return call.owner.startsWith("java/lang/") && ("valueOf".equals(call.name) || "toString".equals(call.name));
+    }
+}
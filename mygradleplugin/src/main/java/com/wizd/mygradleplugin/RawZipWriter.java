@@ -0,0 +1,142 @@
+package com.wizd.mygradleplugin;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.zip.ZipException;
+
+/**
+ * Minimal zip writer for entries that were already deflated elsewhere, which ZipOutputStream can
+ * not take. Only what processJar needs: no extra fields, no comments and no zip64, writeEntry throws
+ * {@link LimitException} past 65535 entries or 4GB.
+ */
+class RawZipWriter implements Closeable {
+    /**
+     * The jar needs zip64, write it with ZipOutputStream instead.
+     */
+    static class LimitException extends ZipException {
+        private static final long serialVersionUID = 1L;
+
+        LimitException() {
+            super("zip64 is not supported");
+        }
+    }
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int FLAG_UTF8 = 0x0800;
+    static final int MAX_ENTRIES = 0xffff;
+
+    private final OutputStream out;
+    private final Charset charset;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private long offset;
+    private int entryCount;
+
+    RawZipWriter(OutputStream out, Charset charset) {
+        this.out = out;
+        this.charset = charset;
+    }
+
+    /**
+     * @param data  entry content, raw deflate data when method is DEFLATED
+     * @param crc   CRC-32 of the uncompressed content
+     * @param size  uncompressed size
+     */
+    void writeEntry(String name, long time, int method, byte[] data, long crc, long size) throws IOException {
+        if (entryCount == MAX_ENTRIES || offset + data.length > 0xffffffffL) {
+            throw new LimitException();
+        }
+        byte[] nameBytes = name.getBytes(charset);
+        int flags = StandardCharsets.UTF_8.equals(charset) ? FLAG_UTF8 : 0;
+        int dosTime = javaToDosTime(time);
+
+        ByteArrayOutputStream header = new ByteArrayOutputStream(30 + nameBytes.length);
+        writeInt(header, LOCAL_HEADER_SIGNATURE);
+        writeShort(header, 20);
+        writeShort(header, flags);
+        writeShort(header, method);
+        writeInt(header, dosTime);
+        writeInt(header, (int) crc);
+        writeInt(header, data.length);
+        writeInt(header, (int) size);
+        writeShort(header, nameBytes.length);
+        writeShort(header, 0);
+        header.write(nameBytes);
+
+        writeInt(centralDirectory, CENTRAL_HEADER_SIGNATURE);
+        writeShort(centralDirectory, 20);
+        writeShort(centralDirectory, 20);
+        writeShort(centralDirectory, flags);
+        writeShort(centralDirectory, method);
+        writeInt(centralDirectory, dosTime);
+        writeInt(centralDirectory, (int) crc);
+        writeInt(centralDirectory, data.length);
+        writeInt(centralDirectory, (int) size);
+        writeShort(centralDirectory, nameBytes.length);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeShort(centralDirectory, 0);
+        writeInt(centralDirectory, 0);
+        writeInt(centralDirectory, (int) offset);
+        centralDirectory.write(nameBytes);
+
+        header.writeTo(out);
+        out.write(data);
+        offset += header.size() + data.length;
+        entryCount++;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ByteArrayOutputStream end = new ByteArrayOutputStream(22);
+            writeInt(end, END_SIGNATURE);
+            writeShort(end, 0);
+            writeShort(end, 0);
+            writeShort(end, entryCount);
+            writeShort(end, entryCount);
+            writeInt(end, centralDirectory.size());
+            writeInt(end, (int) offset);
+            writeShort(end, 0);
+            centralDirectory.writeTo(out);
+            end.writeTo(out);
+            out.flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private static int javaToDosTime(long time) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time == -1 ? System.currentTimeMillis() : time);
+        int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25
+                | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int v) {
+        out.write(v & 0xff);
+        out.write(v >>> 8 & 0xff);
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int v) {
+        out.write(v & 0xff);
+        out.write(v >>> 8 & 0xff);
+        out.write(v >>> 16 & 0xff);
+        out.write(v >>> 24 & 0xff);
+    }
+}
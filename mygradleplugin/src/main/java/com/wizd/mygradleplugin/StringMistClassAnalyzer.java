@@ -0,0 +1,64 @@
+package com.wizd.mygradleplugin;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Cheap pre-pass that finds the methods holding string literals worth encrypting, so the rewrite
+ * only wraps those and ClassWriter copies the bytecode of every other method as is.
+ * Run it with {@code SKIP_DEBUG | SKIP_FRAMES}, it only looks at ldc instructions.
+ */
+public class StringMistClassAnalyzer extends ClassVisitor {
+    private static final int CONSTANT_STRING = 8;
+
+    private final Set<String> literalMethods = new HashSet<>();
+    private int methodCount;
+
+    public StringMistClassAnalyzer(int api) {
+        super(api);
+    }
+
+    /**
+     * @return false when the constant pool has no string at all, such classes can be copied without
+     *         parsing them further
+     */
+    public static boolean hasStringConstants(ClassReader cr) {
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            // getItem is 0 for the unused slot after a long or double
+            if (offset != 0 && cr.readByte(offset - 1) == CONSTANT_STRING) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, final String name, final String desc, String signature,
+                                     String[] exceptions) {
+        methodCount++;
+        return new MethodVisitor(api) {
+            @Override
+            public void visitLdcInsn(Object cst) {
+                if (cst instanceof String && StringMistClassVisitor.isEncryptable((String) cst)) {
+                    literalMethods.add(name + desc);
+                }
+            }
+        };
+    }
+
+    /**
+     * @return name + descriptor of every method with an encryptable ldc
+     */
+    public Set<String> getLiteralMethods() {
+        return literalMethods;
+    }
+
+    public int getMethodCount() {
+        return methodCount;
+    }
+}
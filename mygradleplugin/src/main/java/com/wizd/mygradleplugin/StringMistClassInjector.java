@@ -3,149 +3,728 @@ package com.wizd.mygradleplugin;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.util.HashMap;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipOutputStream;
 
 public class StringMistClassInjector {
     private String nativeInterfaceClass;
-    private String[] excludeClasses;
-    private String[] includeJars;
+    private StringMistConfig.Mode mode;
+    // Generated resource classes never hold secrets and R classes are huge.
+    private static final String[] BUILT_IN_EXCLUDES = {"R", "R$*", "BuildConfig"};
+
+    private static final String HOLDER_SIMPLE_NAME = "StrDecHolder";
+
+    private ClassMatcher excludeMatcher;
+    private JarMatcher includeJarsMatcher;
+    private String seed;
+    private String configFingerprint;
+    private TransformCache cache;
+    private JarMemoryCache memoryCache;
+    private StringMistMetrics metrics;
+    private boolean verbose = true;
+    private int threads;
+    private int jarMaxInFlight;
+    private StringMistConfig.Compression jarCompression;
+    private StringMistConfig.RewriteMode rewriteMode;
+    private int hugeMethodLimit;
+    private int inlineLimit;
+    private StringMistConfig.MethodSizePolicy methodSizePolicy;
+    private StringMistConfig.DecMethodGranularity decMethodGranularity;
+    private int sharedHolders;
+    private int literalChunkSize;
+    private boolean canonicalStrings;
+    private LiteralPolicy literalPolicy;
+    private boolean equalsGuards;
+    private boolean lazyInterfaceConstants;
+    // constants whose reads go to interface holders, see indexInterfaceConstants()
+    private volatile InterfaceConstants interfaceConstants = new InterfaceConstants();
+    // other transforms sharing the pass over each class, see addStage()
+    private final List<ClassTransformStage> stages = new ArrayList<>();
+    // holder classes the classes of the current run call into, see generateHolders()
+    private final Set<String> holders = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private ExecutorService executor;
 
     public StringMistClassInjector(String nativeInterfaceClass, String[] excludeClasses, String[] includeJars){
-        this.nativeInterfaceClass = nativeInterfaceClass;
+        this(new StringMistConfig(nativeInterfaceClass, excludeClasses, includeJars));
+    }
+
+    public StringMistClassInjector(StringMistConfig config){
+        this.nativeInterfaceClass = config.nativeInterfaceClass;
+        this.mode = config.mode;
+
+        String[] excludes = new String[BUILT_IN_EXCLUDES.length + config.excludeClasses.length];
+        System.arraycopy(BUILT_IN_EXCLUDES, 0, excludes, 0, BUILT_IN_EXCLUDES.length);
+        System.arraycopy(config.excludeClasses, 0, excludes, BUILT_IN_EXCLUDES.length, config.excludeClasses.length);
+        this.excludeMatcher = new ClassMatcher(excludes);
+        this.includeJarsMatcher = new JarMatcher(config.includeJars);
+        this.seed = config.seed;
+        this.threads = config.threads;
+        this.jarMaxInFlight = Math.max(1, config.jarMaxInFlight);
+        this.jarCompression = config.jarCompression;
+        this.rewriteMode = config.rewriteMode;
+        this.hugeMethodLimit = config.hugeMethodLimit;
+        this.inlineLimit = config.inlineLimit;
+        this.methodSizePolicy = config.methodSizePolicy;
+        this.decMethodGranularity = config.decMethodGranularity;
+        this.sharedHolders = Math.max(1, config.sharedHolders);
+        this.literalChunkSize = config.literalChunkSize;
+        this.canonicalStrings = config.canonicalStrings;
+        this.literalPolicy = new LiteralPolicy(config.encryptLiterals, config.skipLiterals);
+        this.equalsGuards = config.equalsGuards;
+        this.lazyInterfaceConstants = config.lazyInterfaceConstants;
+        this.configFingerprint = config.fingerprint();
+    }
+
+    public void setCache(TransformCache cache) {
+        this.cache = cache;
+    }
+
+    public void setMemoryCache(JarMemoryCache memoryCache) {
+        this.memoryCache = memoryCache;
+    }
 
-        this.excludeClasses = excludeClasses;
-        for(int i = 0; i < this.excludeClasses.length; i++){
-            this.excludeClasses[i] = this.excludeClasses[i] + ".class";
+    public void setMetrics(StringMistMetrics metrics) {
+        this.metrics = metrics;
+        if (metrics != null) {
+            for (String rule : excludeMatcher.getRules()) {
+                metrics.addRule("exclude " + rule);
+            }
+            for (String rule : includeJarsMatcher.getRules()) {
+                metrics.addRule("includeJars " + rule);
+            }
         }
+    }
 
-        this.includeJars = includeJars;
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
     }
 
-    public void doFog2Class(File fileIn, File fileOut) throws IOException {
-        InputStream is = null;
-        OutputStream os = null;
-        try {
-            is = new BufferedInputStream(new FileInputStream(fileIn));
-            os = new BufferedOutputStream(new FileOutputStream(fileOut));
+    /**
+     * Runs stage in the same read and write of each transformed class as StringMist, after the
+     * stages added before it. Add stages before the first class is transformed.
+     */
+    public void addStage(ClassTransformStage stage) {
+        // ClassWriter.getCommonSuperClass would load the app's classes through the plugin's loader
+        if ((stage.writerFlags() & ClassWriter.COMPUTE_FRAMES) != 0) {
+            throw new IllegalArgumentException("stages can't use COMPUTE_FRAMES, emit the frames instead: " + stage);
+        }
+        stages.add(stage);
+        String fingerprint = stage.fingerprint();
+        // Without a fingerprint a cached output may be stale, so nothing is cached.
+        configFingerprint = fingerprint == null || configFingerprint == null ?
+                null : configFingerprint + "|stage:" + fingerprint;
+    }
 
-            if(isExcludeClass(fileIn)){
-                byte[] buffer = new byte[1024];
-                int read;
-                while ((read = is.read(buffer)) >= 0) {
-                    os.write(buffer, 0, read);
+    /**
+     * Collects the interface constants of the run when lazyInterfaceConstants is on, from class
+     * directories, class files and the jars of includeJars. Call it with every input the run
+     * transforms before the first class is transformed: reads of the constants are only rewritten
+     * in those, and the constants of an interface outside them are left where they are.
+     */
+    public void indexInterfaceConstants(Collection<File> inputs) throws IOException {
+        final InterfaceConstants index = new InterfaceConstants();
+        if (lazyInterfaceConstants) {
+            for (File input : inputs) {
+                if (input.isDirectory()) {
+                    Files.walkFileTree(input.toPath(), new SimpleFileVisitor<Path>() {
+                        @Override
+                        public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                            if (file.getFileName().toString().endsWith(".class")) {
+                                indexInterfaceConstants(index, Files.readAllBytes(file));
+                            } else if (file.getFileName().toString().endsWith(".jar")) {
+                                indexJarConstants(index, file.toFile());
+                            }
+                            return FileVisitResult.CONTINUE;
+                        }
+                    });
+                } else if (input.getName().endsWith(".class")) {
+                    indexInterfaceConstants(index, Files.readAllBytes(input.toPath()));
+                } else if (input.getName().endsWith(".jar")) {
+                    indexJarConstants(index, input);
+                }
+            }
+        }
+        interfaceConstants = index;
+    }
+
+    private void indexJarConstants(InterfaceConstants index, File jar) throws IOException {
+        if (includeJarsMatcher.match(jar.getName()) == null) {
+            return;
+        }
+        ZipFile zip = null;
+        try {
+            zip = openZip(jar);
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class") && !entry.isDirectory()) {
+                    indexInterfaceConstants(index, readEntry(zip, entry));
                 }
             }
-            else {
-                System.out.println(String.format("----------- deal with %s -----------", fileIn.getAbsolutePath()));
+        } finally {
+            closeQuietly(zip);
+        }
+    }
+
+    private void indexInterfaceConstants(InterfaceConstants index, byte[] classBytes) {
+        ClassReader cr = new ClassReader(classBytes);
+        String name = cr.getClassName();
+        if (mode != StringMistConfig.Mode.OFF && !name.equals(nativeInterfaceClass) && !"module-info".equals(name)
+                && excludeMatcher.match(name) == null) {
+            index.add(cr, literalPolicy.isEmpty() ? null : literalPolicy);
+        }
+    }
+
+    // Classes that read an interface constant depend on the index as well.
+    private String fingerprintOf(ClassReader cr) {
+        InterfaceConstants constants = interfaceConstants;
+        if (configFingerprint == null || !constants.isReferencedBy(cr)) {
+            return configFingerprint;
+        }
+        return configFingerprint + "|interfaceConstants:" + constants.fingerprint();
+    }
+
+    /**
+     * Transforms the classes under dirIn into the same places under dirOut. Other files and the
+     * classes excluded by name are passed through, see {@link #passThrough(File, File)}. Every
+     * output directory is created once, on the way down.
+     */
+    public void doFog2Directory(File dirIn, File dirOut) throws IOException {
+        final Path root = dirIn.toPath();
+        final Path outRoot = dirOut.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(outRoot.resolve(root.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Path relative = root.relativize(file);
+                doFog2File(relative, file.toFile(), outRoot.resolve(relative).toFile());
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * One file of a class directory, the parent of fileOut must exist.
+     *
+     * @param relative path of fileIn below the class directory, and of fileOut below the output
+     */
+    public void doFog2File(Path relative, File fileIn, File fileOut) throws IOException {
+        String name = relative.toString().replace(File.separatorChar, '/');
+        if (!name.endsWith(".class")) {
+            passThrough(fileIn, fileOut);
+            return;
+        }
+        // The path tells the class name, excluded classes are never read.
+        if (isExcludeClass(name.substring(0, name.length() - ".class".length()))) {
+            passThrough(fileIn, fileOut);
+            if (metrics != null) {
+                metrics.classesCopied.incrementAndGet();
+            }
+            return;
+        }
+        doFog2Class(fileIn, fileOut);
+    }
+
+    /**
+     * Hardlinks fileOut to fileIn, or where that fails (another file system, no hardlinks) copies
+     * it with {@link Files#copy}, which leaves the copying to the kernel where the platform can.
+     * Outputs are only ever replaced, never written in place, so a link never writes through to
+     * an input.
+     */
+    public void passThrough(File fileIn, File fileOut) throws IOException {
+        boolean linked = linkOrCopy(fileIn.toPath(), fileOut.toPath());
+        if (metrics != null) {
+            (linked ? metrics.filesLinked : metrics.filesCopied).incrementAndGet();
+        }
+    }
+
+    /**
+     * @return true if out was hardlinked, false if copied
+     */
+    public static boolean linkOrCopy(Path in, Path out) throws IOException {
+        Files.deleteIfExists(out);
+        try {
+            Files.createLink(out, in);
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            // Cross device or no hardlink support.
+        }
+        Files.copy(in, out, StandardCopyOption.REPLACE_EXISTING);
+        return false;
+    }
+
+    public void doFog2Class(File fileIn, File fileOut) throws IOException {
+        byte[] classBytes = Files.readAllBytes(fileIn.toPath());
+        ClassReader cr = new ClassReader(classBytes);
+        if(isExcludeClass(cr.getClassName())){
+            passThrough(fileIn, fileOut);
+            if (metrics != null) {
+                metrics.classesCopied.incrementAndGet();
+            }
+            return;
+        }
 
-                processClass(is, os);
+        String cacheKey = null;
+        // an interface with a holder writes two files, it is transformed every time
+        if (cache != null && configFingerprint != null && !interfaceConstants.hasHolder(cr.getClassName())) {
+            cacheKey = TransformCache.keyOf(classBytes, fingerprintOf(cr));
+            if (cache.fetch(cacheKey, fileOut)) {
+                if (metrics != null) {
+                    metrics.classesFromCache.incrementAndGet();
+                }
+                // The cached class may call a holder of this run.
+                if (StringMistClassAnalyzer.hasStringConstants(cr)) {
+                    registerHolder(cr.getClassName());
+                }
+                return;
             }
         }
+
+        if (verbose) {
+            System.out.println(String.format("----------- deal with %s -----------", fileIn.getAbsolutePath()));
+        }
+        // The output may be a hardlink to an input, see passThrough.
+        Files.deleteIfExists(fileOut.toPath());
+        Map<String, byte[]> generated = new TreeMap<>();
+        InputStream is = null;
+        OutputStream os = null;
+        try {
+            is = new ByteArrayInputStream(classBytes);
+            os = new BufferedOutputStream(new FileOutputStream(fileOut));
+            processClass(is, os, generated);
+        }
         finally {
             closeQuietly(os);
             closeQuietly(is);
         }
+        // Interface holders go next to the interface, same package.
+        for (Map.Entry<String, byte[]> holder : generated.entrySet()) {
+            String simpleName = holder.getKey().substring(holder.getKey().lastIndexOf('/') + 1);
+            Files.write(new File(fileOut.getParentFile(), simpleName + ".class").toPath(), holder.getValue());
+        }
+
+        if (cacheKey != null) {
+            cache.store(cacheKey, fileOut);
+        }
     }
 
-    private boolean isExcludeClass(File fileIn) {
-        String fileName = fileIn.getName();
-        if(fileName.startsWith("R$") || fileName.equals("R.class")
-                || fileName.equals("BuildConfig.class")){
+    /**
+     * @param internalName class name with '/' separators, as in the class file
+     */
+    private boolean isExcludeClass(String internalName) {
+        if (mode == StringMistConfig.Mode.OFF) {
             return true;
         }
-
-        String fullPathName = fileIn.getAbsolutePath();
-        String classNameWithPath = fullPathName.replace(File.separator, ".");
-        for(String excludeClassName: excludeClasses){
-            if (classNameWithPath.endsWith(excludeClassName)){
-                return true;
-            }
+        String rule = excludeMatcher.match(internalName);
+        if (rule == null) {
+            return false;
+        }
+        if (metrics != null) {
+            metrics.countRuleHit("exclude " + rule);
         }
+        return true;
+    }
 
-        return false;
+    /**
+     * @param className dotted class name, as AGP's instrumentation reports it
+     */
+    public boolean isExcludeClassName(String className) {
+        return isExcludeClass(className.replace('.', '/'));
     }
 
     private boolean isIncludeJars(File fileIn) {
-        String jarName = fileIn.getName();
-        for(String excludeClassName: includeJars){
-            if (jarName.endsWith(excludeClassName)){
-                return true;
+        String rule = includeJarsMatcher.match(fileIn.getName());
+        if (rule == null) {
+            return false;
+        }
+        if (metrics != null) {
+            metrics.countRuleHit("includeJars " + rule);
+        }
+        return true;
+    }
+
+    public void doFog2Jar(File jarIn, File jarOut) throws IOException {
+        // Jars outside includeJars come out as they went in, they are not worth a cache entry.
+        if (!isIncludeJars(jarIn)) {
+            passThrough(jarIn, jarOut);
+            return;
+        }
+
+        String cacheKey = null;
+        if ((cache != null || memoryCache != null) && configFingerprint != null) {
+            // the output depends on the jar name through includeJars as well, and on the interface
+            // constants of the run, which any of its classes may read
+            InterfaceConstants constants = interfaceConstants;
+            cacheKey = TransformCache.keyOf(jarIn, configFingerprint + "|included"
+                    + (constants.isEmpty() ? "" : "|interfaceConstants:" + constants.fingerprint()));
+            if (memoryCache != null && memoryCache.fetch(cacheKey, jarOut)) {
+                if (metrics != null) {
+                    metrics.jarsFromCache.incrementAndGet();
+                }
+                registerJarHolders(jarIn);
+                return;
+            }
+            if (cache != null && cache.fetch(cacheKey, jarOut)) {
+                if (metrics != null) {
+                    metrics.jarsFromCache.incrementAndGet();
+                }
+                registerJarHolders(jarIn);
+                if (memoryCache != null) {
+                    memoryCache.store(cacheKey, jarOut);
+                }
+                return;
             }
         }
 
-        return false;
+        // Never write through a hardlink handed out by the memory cache.
+        Files.deleteIfExists(jarOut.toPath());
+        doFog2JarUncached(jarIn, jarOut);
+        if (metrics != null) {
+            metrics.jarsTransformed.incrementAndGet();
+        }
+
+        // no key without a config fingerprint, see addStage
+        if (cacheKey != null && cache != null) {
+            cache.store(cacheKey, jarOut);
+        }
+        if (cacheKey != null && memoryCache != null) {
+            memoryCache.store(cacheKey, jarOut);
+        }
     }
 
-    public void doFog2Jar(File jarIn, File jarOut) throws IOException {
+    private void doFog2JarUncached(File jarIn, File jarOut) throws IOException {
+        processJar(jarIn, jarOut, Charset.forName("UTF-8"));
+    }
+
+    /**
+     * Opens a jar with UTF-8 entry names, or GBK when they are not valid UTF-8. JDK 11+ rejects
+     * such names when reading the central directory, JDK 8 only when an entry name is decoded.
+     */
+    public static ZipFile openZip(File jar) throws IOException {
+        ZipFile zip = null;
         try {
-            processJar(jarIn, jarOut, Charset.forName("UTF-8"), Charset.forName("UTF-8"));
-        }
-        catch (IllegalArgumentException e) {
-            if ("MALFORMED".equals(e.getMessage())) {
-                processJar(jarIn, jarOut, Charset.forName("GBK"), Charset.forName("UTF-8"));
-            } else {
-                throw e;
+            zip = new ZipFile(jar, Charset.forName("UTF-8"));
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                entries.nextElement();
+            }
+            return zip;
+        } catch (ZipException | IllegalArgumentException e) {
+            if (zip != null) {
+                zip.close();
             }
+            return new ZipFile(jar, Charset.forName("GBK"));
         }
     }
 
-    @SuppressWarnings("NewApi")
-    private void processJar(File jarIn, File jarOut, Charset charsetIn, Charset charsetOut) throws IOException {
-//        System.out.println(String.format("jar: %s, isIncludeJars: %b", jarIn.getName(), isIncludeJars(jarIn)));
+    private static class EntryData {
+        // Raw deflate data with PARALLEL compression, the plain content otherwise.
+        byte[] data;
+        long crc;
+        long size;
+        // interface holders, written right after the entry
+        Map<String, EntryData> generated;
+    }
+
+    private static class PendingEntry {
+        final ZipEntry entryIn;
+        final Future<EntryData> data;
+
+        PendingEntry(ZipEntry entryIn, Future<EntryData> data) {
+            this.entryIn = entryIn;
+            this.data = data;
+        }
+    }
+
+    private void processJar(File jarIn, File jarOut, Charset charsetOut) throws IOException {
+        try {
+            processJar(jarIn, jarOut, charsetOut, jarCompression);
+        } catch (RawZipWriter.LimitException e) {
+            // Encrypted classes grew the jar past what the raw writer supports, start over.
+            processJar(jarIn, jarOut, charsetOut, StringMistConfig.Compression.DEFAULT);
+        }
+    }
 
-//        boolean shouldExclude = shouldIncludeJar(jarIn, charsetIn);
-        boolean shouldExclude = !isIncludeJars(jarIn);
-        if(!shouldExclude){
+    /**
+     * Reads entries through the central directory, transforms them on the worker pool and writes
+     * them back in their original order. At most jarMaxInFlight entries are held in memory.
+     */
+    @SuppressWarnings("NewApi")
+    private void processJar(File jarIn, File jarOut, Charset charsetOut,
+                            StringMistConfig.Compression requested) throws IOException {
+        if (verbose) {
             System.out.println(String.format("----------- deal with %s -----------", jarIn.getName()));
         }
 
-        ZipInputStream zis = null;
+        ZipFile zip = null;
         ZipOutputStream zos = null;
+        RawZipWriter raw = null;
+        ArrayDeque<PendingEntry> pending = new ArrayDeque<>();
+        Semaphore inFlight = new Semaphore(jarMaxInFlight);
         try {
-            zis = new ZipInputStream(new BufferedInputStream(new FileInputStream(jarIn)), charsetIn);
-            zos = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(jarOut)), charsetOut);
-            ZipEntry entryIn;
-            Map<String, Integer> processedEntryNamesMap = new HashMap<>();
-            while ((entryIn = zis.getNextEntry()) != null) {
+            zip = openZip(jarIn);
+            // The raw writer has no zip64 support, huge jars keep the default compression.
+            final StringMistConfig.Compression compression =
+                    requested == StringMistConfig.Compression.PARALLEL
+                            && (zip.size() >= RawZipWriter.MAX_ENTRIES || jarIn.length() > Integer.MAX_VALUE)
+                            ? StringMistConfig.Compression.DEFAULT : requested;
+            OutputStream out = new BufferedOutputStream(new FileOutputStream(jarOut));
+            if (compression == StringMistConfig.Compression.PARALLEL) {
+                raw = new RawZipWriter(out, charsetOut);
+            } else {
+                zos = new ZipOutputStream(out, charsetOut);
+                if (compression == StringMistConfig.Compression.FAST) {
+                    zos.setLevel(Deflater.BEST_SPEED);
+                }
+            }
+            ExecutorService executor = getExecutor();
+            Set<String> processedEntryNames = new HashSet<>();
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entryIn = entries.nextElement();
                 final String entryName = entryIn.getName();
-                if (!processedEntryNamesMap.containsKey(entryName)) {
-                    ZipEntry entryOut = new ZipEntry(entryIn);
-                    // Set compress method to default, fixed #12
-                    if (entryOut.getMethod() != ZipEntry.DEFLATED) {
-                        entryOut.setMethod(ZipEntry.DEFLATED);
-                    }
-                    entryOut.setCompressedSize(-1);
-                    zos.putNextEntry(entryOut);
-                    if (!entryIn.isDirectory()) {
-                        if (entryName.endsWith(".class") && !shouldExclude) {
-                            System.out.println("Jar class: " + entryName);
-                            processClass(zis, zos);
-                        } else {
-                            copy(zis, zos);
+                if (!processedEntryNames.add(entryName)) {
+                    continue;
+                }
+                if (entryIn.isDirectory()) {
+                    pending.add(new PendingEntry(entryIn, null));
+                    continue;
+                }
+
+                while (!inFlight.tryAcquire()) {
+                    writeEntry(zos, raw, compression, pending.poll(), inFlight);
+                }
+                final ZipFile zipFile = zip;
+                pending.add(new PendingEntry(entryIn, executor.submit(new Callable<EntryData>() {
+                    @Override
+                    public EntryData call() throws IOException {
+                        EntryData entry = new EntryData();
+                        entry.data = readEntry(zipFile, entryIn);
+                        if (entryName.endsWith(".class")) {
+                            if (verbose) {
+                                System.out.println("Jar class: " + entryName);
+                            }
+                            Map<String, byte[]> generated = new TreeMap<>();
+                            entry.data = transformClassUnlessExcluded(entry.data, generated);
+                            for (Map.Entry<String, byte[]> holder : generated.entrySet()) {
+                                EntryData holderEntry = new EntryData();
+                                holderEntry.data = holder.getValue();
+                                prepareEntry(holderEntry, compression);
+                                if (entry.generated == null) {
+                                    entry.generated = new TreeMap<>();
+                                }
+                                entry.generated.put(holder.getKey() + ".class", holderEntry);
+                            }
                         }
+                        prepareEntry(entry, compression);
+                        return entry;
                     }
-                    zos.closeEntry();
-                    processedEntryNamesMap.put(entryName, 1);
-                }
+                })));
+            }
+            while (!pending.isEmpty()) {
+                writeEntry(zos, raw, compression, pending.poll(), inFlight);
             }
         } finally {
+            for (PendingEntry entry : pending) {
+                if (entry.data != null) {
+                    entry.data.cancel(false);
+                }
+            }
             closeQuietly(zos);
-            closeQuietly(zis);
+            closeQuietly(raw);
+            closeQuietly(zip);
+        }
+    }
+
+    // Sets size and, where the writer needs them up front, CRC and raw deflate data.
+    private void prepareEntry(EntryData entry, StringMistConfig.Compression compression) {
+        entry.size = entry.data.length;
+        if (compression == StringMistConfig.Compression.STORED
+                || compression == StringMistConfig.Compression.PARALLEL) {
+            long start = System.nanoTime();
+            CRC32 crc = new CRC32();
+            crc.update(entry.data);
+            entry.crc = crc.getValue();
+            if (compression == StringMistConfig.Compression.PARALLEL) {
+                entry.data = deflate(entry.data);
+            }
+            if (metrics != null) {
+                metrics.compressNanos.addAndGet(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void writeEntry(ZipOutputStream zos, RawZipWriter raw, StringMistConfig.Compression compression,
+                            PendingEntry pending, Semaphore inFlight) throws IOException {
+        EntryData data = null;
+        if (pending.data != null) {
+            try {
+                data = pending.data.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(pending.entryIn.getName());
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                throw new IOException(cause);
+            } finally {
+                inFlight.release();
+            }
+        }
+
+        writeEntry(zos, raw, compression, pending.entryIn, data);
+        if (data != null && data.generated != null) {
+            for (Map.Entry<String, EntryData> generated : data.generated.entrySet()) {
+                ZipEntry entryIn = new ZipEntry(generated.getKey());
+                entryIn.setTime(pending.entryIn.getTime());
+                writeEntry(zos, raw, compression, entryIn, generated.getValue());
+            }
+        }
+    }
+
+    private void writeEntry(ZipOutputStream zos, RawZipWriter raw, StringMistConfig.Compression compression,
+                            ZipEntry entryIn, EntryData data) throws IOException {
+        long start = System.nanoTime();
+        if (raw != null) {
+            if (data == null) {
+                raw.writeEntry(entryIn.getName(), entryIn.getTime(), ZipEntry.STORED, new byte[0], 0, 0);
+            } else {
+                raw.writeEntry(entryIn.getName(), entryIn.getTime(), ZipEntry.DEFLATED,
+                        data.data, data.crc, data.size);
+            }
+            return;
+        }
+
+        ZipEntry entryOut = new ZipEntry(entryIn);
+        if (compression == StringMistConfig.Compression.STORED) {
+            entryOut.setMethod(ZipEntry.STORED);
+            entryOut.setSize(data != null ? data.size : 0);
+            entryOut.setCompressedSize(data != null ? data.size : 0);
+            entryOut.setCrc(data != null ? data.crc : 0);
+        } else {
+            // Set compress method to default, fixed #12
+            if (entryOut.getMethod() != ZipEntry.DEFLATED) {
+                entryOut.setMethod(ZipEntry.DEFLATED);
+            }
+            entryOut.setCompressedSize(-1);
+        }
+        zos.putNextEntry(entryOut);
+        if (data != null) {
+            zos.write(data.data);
+        }
+        zos.closeEntry();
+        if (metrics != null && compression != StringMistConfig.Compression.STORED) {
+            metrics.compressNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    private static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 2 + 64);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                out.write(buffer, 0, count);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        InputStream is = zip.getInputStream(entry);
+        try {
+            long size = entry.getSize();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(size > 0 && size < Integer.MAX_VALUE ? (int) size : 8192);
+            byte[] buffer = new byte[8192];
+            int c;
+            while ((c = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, c);
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "StringMist-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops the worker threads, they are started again on the next jar.
+     */
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            executor = null;
         }
     }
 
@@ -174,23 +753,206 @@ public class StringMistClassInjector {
         }
     }
 
-    private void processClass(InputStream classIn, OutputStream classOut) throws IOException {
-        ClassReader cr = new ClassReader(classIn);
+    private void processClass(InputStream classIn, OutputStream classOut, Map<String, byte[]> generated)
+            throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        copy(classIn, bytes);
+        classOut.write(transformClass(bytes.toByteArray(), generated));
+        classOut.flush();
+    }
+
+    private String holderFor(String className) {
+        switch (decMethodGranularity) {
+            case PACKAGE:
+                return className.substring(0, className.lastIndexOf('/') + 1) + HOLDER_SIMPLE_NAME;
+            case SHARED:
+                return nativeInterfaceClass.substring(0, nativeInterfaceClass.lastIndexOf('/') + 1)
+                        + HOLDER_SIMPLE_NAME + Math.floorMod(className.hashCode(), sharedHolders);
+            default:
+                return null;
+        }
+    }
+
+    private void registerHolder(String className) {
+        String holder = holderFor(className);
+        if (holder != null && !className.equals(nativeInterfaceClass)) {
+            holders.add(holder);
+        }
+    }
+
+    // Classes restored from a cached jar may call package holders, register the package of each.
+    private void registerJarHolders(File jarIn) throws IOException {
+        if (decMethodGranularity != StringMistConfig.DecMethodGranularity.PACKAGE) {
+            return;
+        }
+        ZipFile zip = null;
+        try {
+            zip = openZip(jarIn);
+            registerJarHolders(zip);
+        } finally {
+            closeQuietly(zip);
+        }
+    }
+
+    private void registerJarHolders(ZipFile zip) {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.endsWith(".class") && !name.startsWith("META-INF/")) {
+                registerHolder(name.substring(0, name.length() - ".class".length()));
+            }
+        }
+    }
+
+    /**
+     * Builds the holder classes that the classes transformed or restored from the caches since
+     * the last call use, and forgets them. The caller adds them to the output next to those classes.
+     *
+     * @return internal class name to class bytes
+     */
+    public Map<String, byte[]> generateHolders() {
+        if (decMethodGranularity == StringMistConfig.DecMethodGranularity.SHARED) {
+            // Cheaper than tracking which of the few shared holders cached outputs call.
+            for (int i = 0; i < sharedHolders; i++) {
+                holders.add(nativeInterfaceClass.substring(0, nativeInterfaceClass.lastIndexOf('/') + 1)
+                        + HOLDER_SIMPLE_NAME + i);
+            }
+        }
+        Map<String, byte[]> generated = new TreeMap<>();
+        for (String holder : holders) {
+            generated.put(holder, StringMistClassVisitor.generateHolder(holder, nativeInterfaceClass, canonicalStrings,
+                    mode == StringMistConfig.Mode.FAST));
+        }
+        holders.clear();
+        if (metrics != null) {
+            metrics.holderClasses.addAndGet(generated.size());
+            metrics.methodsAdded.addAndGet(generated.size());
+        }
+        return generated;
+    }
+
+    public void writeHolders(File dirOutput) throws IOException {
+        for (Map.Entry<String, byte[]> holder : generateHolders().entrySet()) {
+            File file = new File(dirOutput, holder.getKey() + ".class");
+            Files.createDirectories(file.getParentFile().toPath());
+            Files.write(file.toPath(), holder.getValue());
+        }
+    }
+
+    private byte[] transformClassUnlessExcluded(byte[] classBytes, Map<String, byte[]> generated) {
+        ClassReader cr = new ClassReader(classBytes);
+        if (isExcludeClass(cr.getClassName())) {
+            if (metrics != null) {
+                metrics.classesCopied.incrementAndGet();
+            }
+            return classBytes;
+        }
+        return transformClass(cr, classBytes, generated);
+    }
+
+    /**
+     * Transforms a class on its own, reads of interface constants stay as they are.
+     */
+    public byte[] transformClass(byte[] classBytes) {
+        return transformClass(new ClassReader(classBytes), classBytes, null);
+    }
+
+    /**
+     * @param generated receives the classes to add next to this one, by internal name: the holder
+     *                  of an interface, see {@link #indexInterfaceConstants(Collection)}
+     */
+    public byte[] transformClass(byte[] classBytes, Map<String, byte[]> generated) {
+        return transformClass(new ClassReader(classBytes), classBytes, generated);
+    }
+
+    private byte[] transformClass(ClassReader cr, byte[] classBytes, Map<String, byte[]> generated) {
+        long start = System.nanoTime();
         // skip module-info class, fixed #38
         if ("module-info".equals(cr.getClassName())) {
-            byte[] buffer = new byte[1024];
-            int read;
-            while ((read = classIn.read(buffer)) >= 0) {
-                classOut.write(buffer, 0, read);
+            return classBytes;
+        }
+        boolean light = rewriteMode == StringMistConfig.RewriteMode.LIGHT;
+        InterfaceConstants constants = generated == null ? null : interfaceConstants;
+        boolean readsConstants = constants != null && constants.isReferencedBy(cr);
+        if (constants != null && !readsConstants && !constants.hasHolder(cr.getClassName())) {
+            constants = null;
+        }
+        // stages may change a class without literals or add literals to it
+        if (light && stages.isEmpty() && !nativeInterfaceClass.equals(cr.getClassName())
+                && !readsConstants && !StringMistClassAnalyzer.hasStringConstants(cr)) {
+            if (metrics != null) {
+                metrics.classesWithoutLiterals.incrementAndGet();
+            }
+            return classBytes;
+        }
+
+        int writerFlags = ClassWriter.COMPUTE_MAXS;
+        for (ClassTransformStage stage : stages) {
+            writerFlags |= stage.writerFlags();
+        }
+        ClassWriter classWriter = new ClassWriter(cr, writerFlags);
+        StringMistClassVisitor cv = new StringMistClassVisitor(nativeInterfaceClass, seed, classWriter);
+        cv.setMethodSizeLimits(hugeMethodLimit, inlineLimit, methodSizePolicy);
+        cv.setLiteralChunkSize(literalChunkSize);
+        cv.setCanonicalStrings(canonicalStrings);
+        cv.setLiteralPolicy(literalPolicy);
+        cv.setFastEncoding(mode == StringMistConfig.Mode.FAST);
+        cv.setEqualsGuards(equalsGuards);
+        cv.setInterfaceConstants(constants);
+        String holder = holderFor(cr.getClassName());
+        if (holder != null) {
+            cv.setDecMethodHolder(holder);
+        }
+        ClassVisitor chain = cv;
+        for (int i = stages.size() - 1; i >= 0; i--) {
+            chain = stages.get(i).wrap(cr.getClassName(), chain);
+        }
+        if (light && stages.isEmpty() && !readsConstants) {
+            // Replacing an ldc with a call that leaves the same String on the stack only changes
+            // max stack, so the compressed frames stay valid and need no expanding.
+            StringMistClassAnalyzer analyzer = new StringMistClassAnalyzer(Opcodes.ASM5);
+            cr.accept(analyzer, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+            cv.setLiteralMethods(analyzer.getLiteralMethods());
+            cr.accept(cv, 0);
+            if (metrics != null) {
+                metrics.methodsCopied.addAndGet(analyzer.getMethodCount() - analyzer.getLiteralMethods().size());
             }
+        } else if (light) {
+            // The stages may add literals to any method, and any method may read an interface
+            // constant, so every method is rewritten. Frames stay compressed as above.
+            cr.accept(chain, 0);
         } else {
-            ClassWriter classWriter = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
-            ClassVisitor cv = new StringMistClassVisitor(nativeInterfaceClass, classWriter);
-            cr.accept(cv, ClassReader.EXPAND_FRAMES);
-            byte[] code = classWriter.toByteArray();
-            classOut.write(code);
-            classOut.flush();
+            cr.accept(chain, ClassReader.EXPAND_FRAMES);
+        }
+        byte[] code = classWriter.toByteArray();
+        if (cv.usesDecMethodHolder()) {
+            holders.add(holder);
+        }
+        byte[] interfaceHolder = cv.getInterfaceHolder();
+        if (interfaceHolder != null) {
+            generated.put(cv.getInterfaceHolderName(), interfaceHolder);
+        }
+
+        if (metrics != null) {
+            metrics.asmNanos.addAndGet(System.nanoTime() - start);
+            metrics.classesTransformed.incrementAndGet();
+            metrics.literalsEncrypted.addAndGet(cv.getEncryptedCount());
+            metrics.largeLiterals.addAndGet(cv.getLargeLiteralCount());
+            metrics.equalsGuards.addAndGet(cv.getEqualsGuardCount());
+            metrics.literalsLeftPlain.addAndGet(cv.getPolicySkippedCount());
+            if (canonicalStrings) {
+                metrics.countLiteralUses(cv.getEncryptedLiterals());
+            }
+            metrics.methodSizeWarnings.addAndGet(cv.getSizeWarningCount());
+            metrics.methodsAdded.addAndGet(cv.getAddedMethodCount());
+            metrics.bytesIn.addAndGet(classBytes.length);
+            metrics.bytesOut.addAndGet(code.length);
+            if (interfaceHolder != null) {
+                metrics.holderClasses.incrementAndGet();
+                metrics.bytesOut.addAndGet(interfaceHolder.length);
+            }
         }
+        return code;
     }
 
     private void closeQuietly(Closeable target) {
@@ -1,28 +1,91 @@
 package com.wizd.mygradleplugin;
 
+import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.TypePath;
+import org.objectweb.asm.commons.CodeSizeEvaluator;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.MethodNode;
 
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
 
     private Random random;
+    private String seed;
+    private int literalIndex;
+    private int encryptedCount;
+    private int equalsGuardCount;
     private String targetClassName;
     private String decMethodClassName;
     private String decMethodName;
+    private String decMethodHolder;
     private String nativeInterfaceClassName;
     private int generateMethodAcc;
     private boolean isClInitExists;
     private boolean needGenDecMethod;
     private boolean isTargetClassInterface;
     private boolean isNativeInterfaceClass;
+    private Set<String> literalMethods;
+
+    // An encrypted literal grows from ldc (3 bytes at most) to three ldc and an invokestatic.
+    private static final int ENCRYPTED_LITERAL_GROWTH = 9;
+    private int hugeMethodLimit = StringMistConfig.DEFAULT_HUGE_METHOD_LIMIT;
+    private int inlineLimit = StringMistConfig.DEFAULT_INLINE_LIMIT;
+    private StringMistConfig.MethodSizePolicy methodSizePolicy = StringMistConfig.MethodSizePolicy.ACCESSOR;
+    // policy of the method being rewritten, null when it stays below every limit
+    private StringMistConfig.MethodSizePolicy currentMethodPolicy;
+    private List<StrEnc> accessors = new ArrayList<>();
+    private int sizeWarningCount;
+    private int literalChunkSize = StringMistConfig.DEFAULT_LITERAL_CHUNK_SIZE;
+    private List<LargeLiteral> largeLiterals = new ArrayList<>();
+    private int largeLiteralCount;
+    private boolean canonicalStrings;
+    private List<String> encryptedLiterals = new ArrayList<>();
+    // null encrypts every literal
+    private LiteralPolicy literalPolicy;
+    private int policySkippedCount;
+    private final Set<String> classAnnotations = new HashSet<>();
+    // context of the method being rewritten, only known with a policy that needs it
+    private Set<String> currentAnnotations = classAnnotations;
+    private Set<String> currentLogArguments;
+    // XOR only, no Blowfish and no native call, see setFastEncoding
+    private boolean fastEncoding;
+    private boolean equalsGuards;
+    // literal to the index of its cached value in largeLiterals, by the form of equals it guards
+    private final Map<String, Integer> stringEqualsGuards = new LinkedHashMap<>();
+    private final Map<String, Integer> objectEqualsGuards = new LinkedHashMap<>();
+    // constants read through holder accessors, null keeps every read as it is
+    private InterfaceConstants interfaceConstants;
+    // holder of this interface's constants, null for classes and interfaces without any
+    private String interfaceHolderName;
+    private byte[] interfaceHolder;
+    private int interfaceHolderMethods;
+
+    private static final String HOLDER_METHOD_NAME = "strDec";
+
+    // rekeyed for every literal, the key schedule and buffers are reused within the class
+    private Blowfish blowfish;
+    private final byte[] blowfishKey = new byte[32];
+    private byte[] encryptBuffer = new byte[256];
 
     private List<ClassStringField> mStaticFinalFields = new ArrayList<>();
     private List<ClassStringField> mStaticFields = new ArrayList<>();
@@ -32,14 +95,42 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
     public class StrEnc{
         public String encrypted;
         public String blowfishKey;
+        // negative when the plain text is ISO-8859-1, see isLatin1
         public byte xorVal;
     }
 
+    private static class LargeLiteral {
+        final int length;
+        final List<StrEnc> chunks;
+
+        LargeLiteral(int length, List<StrEnc> chunks) {
+            this.length = length;
+            this.chunks = chunks;
+        }
+    }
+
     public StringMistClassVisitor(String nativeInterfaceClassName, ClassVisitor cv) {
-        super(Opcodes.ASM5, cv);
+        this(nativeInterfaceClassName, null, cv);
+    }
+
+    /**
+     * @param seed secret build seed, when it is not null keys, IVs, XOR values and the decrypt method
+     *             name only depend on it, the class name and the literal position, so unchanged
+     *             classes are transformed into identical bytes on every build
+     */
+    public StringMistClassVisitor(String nativeInterfaceClassName, String seed, ClassVisitor cv) {
+        this(Opcodes.ASM5, nativeInterfaceClassName, seed, cv);
+    }
+
+    /**
+     * @param api ASM api level of the surrounding pipeline, AGP's instrumentation passes its own
+     */
+    public StringMistClassVisitor(int api, String nativeInterfaceClassName, String seed, ClassVisitor cv) {
+        super(api, cv);
         random = new Random();
         random.setSeed(System.currentTimeMillis());
 
+        this.seed = seed;
         this.nativeInterfaceClassName = nativeInterfaceClassName;
 
         isClInitExists = false;
@@ -47,8 +138,6 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
         isTargetClassInterface = false;
         isNativeInterfaceClass = false;
         generateMethodAcc = ACC_STATIC;
-
-        decMethodName = "strDec123" + random.nextInt(100);
     }
 
     @Override
@@ -59,6 +148,7 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
 //                signature));
 
         this.targetClassName = name;
+        this.decMethodName = "strDec123" + randomFor(name).nextInt(100);
 
         if((access & ACC_INTERFACE) != 0){  // interface, can not generate method, call NativeInterface.strDec instead
             this.isTargetClassInterface = true;
@@ -73,20 +163,200 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
             this.isNativeInterfaceClass = true;
             this.decMethodName = "strDec";
         }
+        else if(decMethodHolder != null){
+            this.decMethodClassName = decMethodHolder;
+            this.decMethodName = HOLDER_METHOD_NAME;
+        }
+
+        if (isTargetClassInterface && !isNativeInterfaceClass && interfaceConstants != null
+                && interfaceConstants.hasHolder(name)) {
+            this.interfaceHolderName = InterfaceConstants.holderName(name);
+        }
 
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
+    /**
+     * Calls {@code holderClassName.strDec} (see {@link #generateHolder}) instead of generating a
+     * private decrypt method in this class. Must be set before the class is visited.
+     */
+    public void setDecMethodHolder(String holderClassName) {
+        this.decMethodHolder = holderClassName;
+    }
+
+    /**
+     * @return true if the class now calls the holder set with {@link #setDecMethodHolder(String)}
+     */
+    public boolean usesDecMethodHolder() {
+        return decMethodHolder != null && !isNativeInterfaceClass && encryptedCount > 0;
+    }
+
+    /**
+     * @return decrypt methods and accessors added to the class and its interface holder
+     */
+    public int getAddedMethodCount() {
+        return (needGenDecMethod ? 1 : 0) + accessors.size() + largeLiterals.size()
+                + stringEqualsGuards.size() + objectEqualsGuards.size() + interfaceHolderMethods;
+    }
+
+    /**
+     * Reads of the given interface constants become calls to the accessors of their interface's
+     * holder, and an interface with constants among them leaves them out of its static initializer
+     * and gets that holder, see {@link #getInterfaceHolder()}. Methods reading a constant must not
+     * be left out by {@link #setLiteralMethods(Set)}. Must be set before the class is visited.
+     */
+    public void setInterfaceConstants(InterfaceConstants interfaceConstants) {
+        this.interfaceConstants = interfaceConstants;
+    }
+
+    /**
+     * @return internal name of the class {@link #getInterfaceHolder()} returns
+     */
+    public String getInterfaceHolderName() {
+        return interfaceHolderName;
+    }
+
+    /**
+     * @return the holder of this interface's constants, null if it has none. The caller adds it
+     *         to the output next to the interface.
+     */
+    public byte[] getInterfaceHolder() {
+        return interfaceHolder;
+    }
+
+    /**
+     * Methods missing from literalMethods (name + descriptor, see {@link StringMistClassAnalyzer})
+     * are passed through unwrapped, so a ClassWriter built on the same ClassReader copies their
+     * bytecode without decoding it. null, the default, rewrites every method.
+     */
+    public void setLiteralMethods(Set<String> literalMethods) {
+        this.literalMethods = literalMethods;
+    }
+
+    /**
+     * Methods whose bytecode would grow across hugeMethodLimit (HotSpot does not compile methods
+     * over 8000 bytes) or inlineLimit (the inlining size of hot methods) are rewritten according
+     * to policy, and a warning is printed. 0 disables a limit.
+     */
+    public void setMethodSizeLimits(int hugeMethodLimit, int inlineLimit, StringMistConfig.MethodSizePolicy policy) {
+        this.hugeMethodLimit = hugeMethodLimit;
+        this.inlineLimit = inlineLimit;
+        this.methodSizePolicy = policy;
+    }
+
+    public int getSizeWarningCount() {
+        return sizeWarningCount;
+    }
+
+    /**
+     * Literals over chunkSize bytes of UTF-8 are encrypted in chunks of at most that size, so no
+     * encrypted constant outgrows the constant pool and the native decryptor only ever gets small
+     * buffers. They are decrypted once, on first use, and then kept in a synthetic field.
+     */
+    public void setLiteralChunkSize(int chunkSize) {
+        this.literalChunkSize = Math.max(1, Math.min(chunkSize, StringMistConfig.MAX_LITERAL_CHUNK_SIZE));
+    }
+
+    /**
+     * Makes the decrypt methods return {@link String#intern()}ed strings, so every use of a literal
+     * shares one instance on the heap and compares == to the same literal in unencrypted code, as
+     * ldc constants do. Must match the setting the native interface class is transformed with.
+     */
+    public void setCanonicalStrings(boolean canonicalStrings) {
+        this.canonicalStrings = canonicalStrings;
+    }
+
+    /**
+     * Only XORs literals, the decrypt methods skip the native Blowfish call and the key is empty.
+     * For debug builds, where transforming and running should cost next to nothing: the literals
+     * are merely unreadable, not protected. Must match the setting the native interface class is
+     * transformed with.
+     */
+    public void setFastEncoding(boolean fastEncoding) {
+        this.fastEncoding = fastEncoding;
+    }
+
+    /**
+     * Replaces {@code s.equals("literal")}, the confirmation javac emits after the hashCode
+     * dispatch of a string switch, and {@code "literal".equals(o)} with calls to private guards.
+     * A guard compares the length first and only then the literal, which is decrypted on its first
+     * use and then kept in a synthetic field, so repeated checks decrypt nothing. Interfaces keep
+     * the plain calls.
+     */
+    public void setEqualsGuards(boolean equalsGuards) {
+        this.equalsGuards = equalsGuards;
+    }
+
+    /**
+     * @return equals calls replaced by guards, see {@link #setEqualsGuards(boolean)}
+     */
+    public int getEqualsGuardCount() {
+        return equalsGuardCount;
+    }
+
+    /**
+     * Leaves the literals the policy rejects in plain text. Policies that look at the surrounding
+     * method buffer every rewritten method, like the size limits do.
+     */
+    public void setLiteralPolicy(LiteralPolicy literalPolicy) {
+        this.literalPolicy = literalPolicy == null || literalPolicy.isEmpty() ? null : literalPolicy;
+    }
+
+    /**
+     * @return uses of encryptable literals the policy left in plain text
+     */
+    public int getPolicySkippedCount() {
+        return policySkippedCount;
+    }
+
+    /**
+     * @return plain text of every literal this class now decrypts, one entry per use
+     */
+    public List<String> getEncryptedLiterals() {
+        return encryptedLiterals;
+    }
+
+    /**
+     * @return literals encrypted in chunks, see {@link #setLiteralChunkSize(int)}
+     */
+    public int getLargeLiteralCount() {
+        return largeLiteralCount;
+    }
+
+    @Override
+    public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
+        classAnnotations.add(desc);
+        return super.visitAnnotation(desc, visible);
+    }
+
     @Override
     public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
         //System.out.println("StringMistClassVisitor : visitMethod : " + name);
         MethodVisitor mv = cv.visitMethod(access, name, desc, signature, exceptions);
+        if (interfaceConstants != null) {
+            mv = new InterfaceConstantReads(mv);
+        }
 
         if ("<clinit>".equals(name)) {
             isClInitExists = true;
+        }
+        if (literalMethods != null && !literalMethods.contains(name + desc)
+                && !("<clinit>".equals(name) && !mStaticFinalFields.isEmpty())) {
+            return mv;
+        }
+        final boolean guardSize = hugeMethodLimit > 0 || inlineLimit > 0;
+        final boolean buffer = guardSize || literalPolicy != null && literalPolicy.needsContext();
+        CodeSizeEvaluator sizeAfter = null;
+        if (guardSize) {
+            sizeAfter = new CodeSizeEvaluator(api, mv) {
+            };
+            mv = sizeAfter;
+        }
+
+        if ("<clinit>".equals(name)) {
             // 处理静态成员变量
             // If clinit exists meaning the static fields (not final) would have be inited here.
-            mv = new MethodVisitor(Opcodes.ASM5, mv) {
+            mv = new MethodVisitor(api, mv) {
 
                 private String lastStashCst;
 
@@ -96,6 +366,9 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
                     // Here init static final fields.
                     for (ClassStringField field : mStaticFinalFields) {
 //                        System.out.println("visitMethodInsn0");
+                        if (isHolderConstant(field)) {
+                            continue;
+                        }
                         if (!canEncrypted(field.value)) {
                             if(field.value != null) {
                                 mv.visitLdcInsn(field.value);
@@ -105,16 +378,9 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
                         }
                         String originValue = field.value;
 
-                        needGenDecMethod = !isTargetClassInterface;
+                        needGenDecMethod = !isTargetClassInterface && decMethodHolder == null;
 
-                        StrEnc strEnc = generateKeyAndEncryptString(originValue);
-                        super.visitLdcInsn(strEnc.encrypted);
-                        super.visitLdcInsn(strEnc.blowfishKey);
-                        super.visitLdcInsn(strEnc.xorVal);
-                        super.visitMethodInsn(Opcodes.INVOKESTATIC,
-                                decMethodClassName,
-                                decMethodName,
-                                "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", false);
+                        visitStrDecInsn(mv, originValue);
                         super.visitFieldInsn(Opcodes.PUTSTATIC, targetClassName, field.name, ClassStringField.STRING_DESC);
 //                        generateInvokeStrDec(this, field);
 
@@ -129,16 +395,9 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
                         lastStashCst = (String) cst;
                         String originValue = lastStashCst;
 
-                        needGenDecMethod = !isTargetClassInterface;
+                        needGenDecMethod = !isTargetClassInterface && decMethodHolder == null;
 
-                        StrEnc strEnc = generateKeyAndEncryptString(originValue);
-                        super.visitLdcInsn(strEnc.encrypted);
-                        super.visitLdcInsn(strEnc.blowfishKey);
-                        super.visitLdcInsn(strEnc.xorVal);
-                        super.visitMethodInsn(Opcodes.INVOKESTATIC,
-                                decMethodClassName,
-                                decMethodName,
-                                "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", false);
+                        visitStrDecInsn(mv, originValue);
 
 //                        generateInvokeStrDec(this, originValue);
                     } else {
@@ -175,7 +434,7 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
         else if ("<init>".equals(name)) {
             // 处理成员变量
             // Here init final(not static) and normal fields
-            mv = new MethodVisitor(Opcodes.ASM5, mv) {
+            mv = new MethodVisitor(api, mv) {
                 @Override
                 public void visitLdcInsn(Object cst) {
                     // We don't care about whether the field is final or normal
@@ -183,16 +442,9 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
                     if (cst instanceof String && canEncrypted((String) cst)) {
                         String originValue = (String) cst;
 
-                        needGenDecMethod = !isTargetClassInterface;
+                        needGenDecMethod = !isTargetClassInterface && decMethodHolder == null;
 
-                        StrEnc strEnc = generateKeyAndEncryptString(originValue);
-                        super.visitLdcInsn(strEnc.encrypted);
-                        super.visitLdcInsn(strEnc.blowfishKey);
-                        super.visitLdcInsn(strEnc.xorVal);
-                        super.visitMethodInsn(Opcodes.INVOKESTATIC,
-                                decMethodClassName,
-                                decMethodName,
-                                "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", false);
+                        visitStrDecInsn(mv, originValue);
 
 //                        generateInvokeStrDec(this, originValue);
                     } else {
@@ -203,7 +455,7 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
         }
         else {
             // 处理局部变量
-            mv = new MethodVisitor(Opcodes.ASM5, mv) {
+            mv = new MethodVisitor(api, mv) {
 
                 @Override
                 public void visitLdcInsn(Object cst) {
@@ -228,27 +480,288 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
                         // local variables
                         String originValue = (String) cst;
 
-                        needGenDecMethod = !isTargetClassInterface;
+                        needGenDecMethod = !isTargetClassInterface && decMethodHolder == null;
 
-                        StrEnc strEnc = generateKeyAndEncryptString(originValue);
-                        super.visitLdcInsn(strEnc.encrypted);
-                        super.visitLdcInsn(strEnc.blowfishKey);
-                        super.visitLdcInsn(strEnc.xorVal);
-                        super.visitMethodInsn(Opcodes.INVOKESTATIC,
-                                decMethodClassName,
-                                decMethodName,
-                                "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", false);
+                        visitStrDecInsn(mv, originValue);
 
 //                        generateInvokeStrDec(this, originValue);
                         return;
                     }
                     super.visitLdcInsn(cst);
                 }
-
             };
+            if (equalsGuards && !isTargetClassInterface && !isNativeInterfaceClass) {
+                mv = new EqualsGuardVisitor(mv);
+            }
         }
 //        }
-        return mv;
+        if (!buffer) {
+            return mv;
+        }
+        return new MethodSizeGuard(access, name, desc, signature, exceptions, mv, sizeAfter);
+    }
+
+    /**
+     * Buffers a method to measure it before the rewrite, so the size policy is known before the
+     * first literal is replaced, and to give the literal policy the annotations and logging calls
+     * of the method. sizeAfter is null without size limits.
+     */
+    private class MethodSizeGuard extends MethodNode {
+        private final MethodVisitor rewriter;
+        private final CodeSizeEvaluator sizeAfter;
+
+        MethodSizeGuard(int access, String name, String desc, String signature, String[] exceptions,
+                        MethodVisitor rewriter, CodeSizeEvaluator sizeAfter) {
+            super(StringMistClassVisitor.this.api, access, name, desc, signature, exceptions);
+            this.rewriter = rewriter;
+            this.sizeAfter = sizeAfter;
+        }
+
+        @Override
+        public void visitEnd() {
+            super.visitEnd();
+            if (literalPolicy != null && literalPolicy.needsContext()) {
+                currentAnnotations = new HashSet<>(classAnnotations);
+                addAnnotations(currentAnnotations, visibleAnnotations);
+                addAnnotations(currentAnnotations, invisibleAnnotations);
+                currentLogArguments = LiteralPolicy.logArguments(instructions);
+            }
+            try {
+                rewrite();
+            } finally {
+                currentAnnotations = classAnnotations;
+                currentLogArguments = null;
+            }
+        }
+
+        private void rewrite() {
+            if (sizeAfter == null) {
+                accept(rewriter);
+                return;
+            }
+            CodeSizeEvaluator sizeBefore = new CodeSizeEvaluator(null);
+            int literals = "<clinit>".equals(name) ? mStaticFinalFields.size() : 0;
+            for (AbstractInsnNode insn = instructions.getFirst(); insn != null; insn = insn.getNext()) {
+                insn.accept(sizeBefore);
+                if (insn instanceof LdcInsnNode && ((LdcInsnNode) insn).cst instanceof String
+                        && canEncrypted((String) ((LdcInsnNode) insn).cst, false)) {
+                    literals++;
+                }
+            }
+            int before = sizeBefore.getMaxSize();
+            int estimated = before + literals * ENCRYPTED_LITERAL_GROWTH;
+            String crossed = crossedLimit(before, estimated);
+            if (crossed != null) {
+                currentMethodPolicy = methodSizePolicy;
+                if (isTargetClassInterface && methodSizePolicy == StringMistConfig.MethodSizePolicy.ACCESSOR) {
+                    // No private static methods in interfaces before Java 9.
+                    currentMethodPolicy = null;
+                }
+                sizeWarningCount++;
+                System.out.println(String.format("StringMist warning: %s.%s%s would grow from %d to %d bytes across the %s,"
+                                + " %s", targetClassName, name, desc, before, estimated, crossed,
+                        currentMethodPolicy == StringMistConfig.MethodSizePolicy.ACCESSOR ? "moving its literals into accessors"
+                                : currentMethodPolicy == StringMistConfig.MethodSizePolicy.SKIP ? "leaving its literals unencrypted"
+                                : "encrypting it anyway"));
+            }
+            try {
+                accept(rewriter);
+            } finally {
+                currentMethodPolicy = null;
+            }
+            if (crossed == null) {
+                crossed = crossedLimit(before, sizeAfter.getMaxSize());
+                if (crossed != null) {
+                    sizeWarningCount++;
+                    System.out.println(String.format("StringMist warning: %s.%s%s grew from %d to %d bytes across the %s",
+                            targetClassName, name, desc, before, sizeAfter.getMaxSize(), crossed));
+                }
+            }
+        }
+    }
+
+    /**
+     * Holds back an encryptable ldc, and an aload right after it, until the next instruction shows
+     * whether they feed String.equals. If so the pair becomes a call to an equals guard, otherwise
+     * they are replayed to the literal rewriter behind.
+     */
+    private class EqualsGuardVisitor extends MethodVisitor {
+        private String pendingLiteral;
+        private int pendingVar = -1;
+
+        EqualsGuardVisitor(MethodVisitor mv) {
+            super(StringMistClassVisitor.this.api, mv);
+        }
+
+        private void flush() {
+            if (pendingLiteral != null) {
+                String literal = pendingLiteral;
+                int var = pendingVar;
+                pendingLiteral = null;
+                pendingVar = -1;
+                super.visitLdcInsn(literal);
+                if (var >= 0) {
+                    super.visitVarInsn(ALOAD, var);
+                }
+            }
+        }
+
+        @Override
+        public void visitLdcInsn(Object cst) {
+            flush();
+            if (cst instanceof String && canEncrypted((String) cst, false)) {
+                pendingLiteral = (String) cst;
+                return;
+            }
+            super.visitLdcInsn(cst);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            if (pendingLiteral != null && pendingVar < 0 && opcode == ALOAD) {
+                pendingVar = var;
+                return;
+            }
+            flush();
+            super.visitVarInsn(opcode, var);
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+            if (pendingLiteral != null && opcode == INVOKEVIRTUAL && "java/lang/String".equals(owner)
+                    && "equals".equals(name) && "(Ljava/lang/Object;)Z".equals(desc)) {
+                boolean objectArgument = pendingVar >= 0;
+                if (objectArgument) {
+                    // "literal".equals(o), the literal was the receiver
+                    super.visitVarInsn(ALOAD, pendingVar);
+                }
+                String literal = pendingLiteral;
+                pendingLiteral = null;
+                pendingVar = -1;
+                visitEqualsGuardInsn(mv, literal, objectArgument);
+                return;
+            }
+            flush();
+            super.visitMethodInsn(opcode, owner, name, desc, itf);
+        }
+
+        @Override
+        public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+            flush();
+            super.visitFrame(type, nLocal, local, nStack, stack);
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            flush();
+            super.visitInsn(opcode);
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            flush();
+            super.visitIntInsn(opcode, operand);
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            flush();
+            super.visitTypeInsn(opcode, type);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            flush();
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String desc, Handle bsm, Object... bsmArgs) {
+            flush();
+            super.visitInvokeDynamicInsn(name, desc, bsm, bsmArgs);
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            flush();
+            super.visitJumpInsn(opcode, label);
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            flush();
+            super.visitLabel(label);
+        }
+
+        @Override
+        public void visitIincInsn(int var, int increment) {
+            flush();
+            super.visitIincInsn(var, increment);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            flush();
+            super.visitTableSwitchInsn(min, max, dflt, labels);
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            flush();
+            super.visitLookupSwitchInsn(dflt, keys, labels);
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String desc, int dims) {
+            flush();
+            super.visitMultiANewArrayInsn(desc, dims);
+        }
+
+        @Override
+        public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String desc, boolean visible) {
+            flush();
+            return super.visitInsnAnnotation(typeRef, typePath, desc, visible);
+        }
+
+        @Override
+        public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+            flush();
+            super.visitTryCatchBlock(start, end, handler, type);
+        }
+
+        @Override
+        public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+            flush();
+            super.visitLocalVariable(name, desc, signature, start, end, index);
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            flush();
+            super.visitLineNumber(line, start);
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            flush();
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        @Override
+        public void visitEnd() {
+            flush();
+            super.visitEnd();
+        }
+    }
+
+    private String crossedLimit(int before, int after) {
+        if (hugeMethodLimit > 0 && before <= hugeMethodLimit && after > hugeMethodLimit) {
+            return "huge method limit (" + hugeMethodLimit + ")";
+        }
+        if (inlineLimit > 0 && before <= inlineLimit && after > inlineLimit) {
+            return "inline limit (" + inlineLimit + ")";
+        }
+        return null;
     }
 
     @Override
@@ -282,12 +795,15 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
 
     @Override
     public void visitEnd() {
-        if (!isClInitExists && !mStaticFinalFields.isEmpty()) {
+        if (!isClInitExists && hasStaticFinalFieldsToInit()) {
             MethodVisitor mv = super.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
             mv.visitCode();
             // Here init static final fields.
             for (ClassStringField field : mStaticFinalFields) {
 //                System.out.println("visitMethodInsn4");
+                if (isHolderConstant(field)) {
+                    continue;
+                }
                 if (!canEncrypted(field.value)) {
                     if(field.value != null) {
                         mv.visitLdcInsn(field.value);
@@ -299,17 +815,10 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
 //                mv.visitMethodInsn(Opcodes.INVOKESTATIC, mStringFogImpl.class.getName().replace('.', '/'), "decrypt", "(Ljava/lang/String;)Ljava/lang/String;", false);
 //                mv.visitFieldInsn(Opcodes.PUTSTATIC, targetClassName, field.name, ClassStringField.STRING_DESC);
 
-                needGenDecMethod = !isTargetClassInterface;
+                needGenDecMethod = !isTargetClassInterface && decMethodHolder == null;
 
                 String originValue = field.value;
-                StrEnc strEnc = generateKeyAndEncryptString(originValue);
-                mv.visitLdcInsn(strEnc.encrypted);
-                mv.visitLdcInsn(strEnc.blowfishKey);
-                mv.visitLdcInsn(strEnc.xorVal);
-                mv.visitMethodInsn(Opcodes.INVOKESTATIC,
-                        decMethodClassName,
-                        decMethodName,
-                        "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", false);
+                visitStrDecInsn(mv, originValue);
                 mv.visitFieldInsn(Opcodes.PUTSTATIC, targetClassName, field.name, ClassStringField.STRING_DESC);
             }
             mv.visitInsn(Opcodes.RETURN);
@@ -325,16 +834,131 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
             generateMethodAcc |= ACC_PRIVATE;
         }
 
+        for (int i = 0; i < accessors.size(); i++) {
+            generateAccessor(i, accessors.get(i));
+        }
+
+        for (int i = 0; i < largeLiterals.size(); i++) {
+            generateCachedLiteral(cv, ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, targetClassName,
+                    largeLiteralName(i), largeLiterals.get(i));
+        }
+        for (Map.Entry<String, Integer> guard : stringEqualsGuards.entrySet()) {
+            generateEqualsGuard(guard.getValue(), guard.getKey(), false);
+        }
+        for (Map.Entry<String, Integer> guard : objectEqualsGuards.entrySet()) {
+            generateEqualsGuard(guard.getValue(), guard.getKey(), true);
+        }
+        if (interfaceHolderName != null) {
+            interfaceHolder = generateInterfaceHolder();
+        }
+
         if(needGenDecMethod) {
-            generateNewMethod();
+            generateDecMethod(cv, generateMethodAcc, decMethodName, nativeInterfaceClassName, canonicalStrings,
+                    fastEncoding);
         }
 
         super.visitEnd();
     }
 
+    private boolean isHolderConstant(ClassStringField field) {
+        return interfaceHolderName != null && field.value != null
+                && interfaceConstants.contains(targetClassName, field.name);
+    }
+
+    private boolean hasStaticFinalFieldsToInit() {
+        for (ClassStringField field : mStaticFinalFields) {
+            if (field.value != null && !isHolderConstant(field)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // One cached field and public accessor per constant, named after it, and the decrypt method
+    // behind them unless a package or shared holder has one.
+    private byte[] generateInterfaceHolder() {
+        String classDecMethodClassName = decMethodClassName;
+        String classDecMethodName = decMethodName;
+        if (decMethodHolder == null) {
+            decMethodClassName = interfaceHolderName;
+            decMethodName = "strDec123" + randomFor(interfaceHolderName).nextInt(100);
+        }
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, interfaceHolderName, null,
+                "java/lang/Object", null);
+        try {
+            for (ClassStringField field : mStaticFinalFields) {
+                if (!isHolderConstant(field)) {
+                    continue;
+                }
+                encryptedCount++;
+                encryptedLiterals.add(field.value);
+                List<String> chunks = field.value.length() > literalChunkSize / 3
+                        ? splitLiteral(field.value, literalChunkSize) : Collections.singletonList(field.value);
+                List<StrEnc> encrypted = new ArrayList<>();
+                for (String chunk : chunks) {
+                    encrypted.add(generateKeyAndEncryptString(chunk));
+                }
+                if (chunks.size() > 1) {
+                    largeLiteralCount++;
+                }
+                generateCachedLiteral(cw, ACC_PUBLIC | ACC_STATIC | ACC_SYNTHETIC, interfaceHolderName,
+                        field.name, new LargeLiteral(field.value.length(), encrypted));
+                interfaceHolderMethods++;
+            }
+            if (decMethodHolder == null) {
+                generateDecMethod(cw, ACC_PRIVATE | ACC_STATIC, decMethodName, nativeInterfaceClassName,
+                        canonicalStrings, fastEncoding);
+                interfaceHolderMethods++;
+            }
+        } finally {
+            decMethodClassName = classDecMethodClassName;
+            decMethodName = classDecMethodName;
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * Sits right before the writer, so the reads the rewriter adds for literals equal to a
+     * constant of this interface are redirected as well.
+     */
+    private class InterfaceConstantReads extends MethodVisitor {
+        InterfaceConstantReads(MethodVisitor mv) {
+            super(StringMistClassVisitor.this.api, mv);
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+            if (opcode == Opcodes.GETSTATIC && ClassStringField.STRING_DESC.equals(desc)
+                    && interfaceConstants.contains(owner, name)) {
+                super.visitMethodInsn(Opcodes.INVOKESTATIC, InterfaceConstants.holderName(owner), name,
+                        "()Ljava/lang/String;", false);
+                return;
+            }
+            super.visitFieldInsn(opcode, owner, name, desc);
+        }
+    }
+
+    /**
+     * A class that only holds a public strDec, called by the classes that
+     * {@link #setDecMethodHolder(String)} points to it.
+     */
+    public static byte[] generateHolder(String holderClassName, String nativeInterfaceClassName,
+                                        boolean canonicalStrings, boolean fastEncoding) {
+        ClassWriter cw = new ClassWriter(0);
+        cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER | ACC_SYNTHETIC, holderClassName, null,
+                "java/lang/Object", null);
+        generateDecMethod(cw, ACC_PUBLIC | ACC_STATIC, HOLDER_METHOD_NAME, nativeInterfaceClassName, canonicalStrings,
+                fastEncoding);
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
     // R8 Shrinker will replace this method with "throw null", use proguard instead
-    private void generateNewMethod(){
-        MethodVisitor mv = super.visitMethod(generateMethodAcc, decMethodName, "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", null, null);
+    private static void generateDecMethod(ClassVisitor cv, int access, String decMethodName, String nativeInterfaceClassName,
+                                          boolean canonicalStrings, boolean fastEncoding){
+        MethodVisitor mv = cv.visitMethod(access, decMethodName, "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", null, null);
         mv.visitCode();
         Label l0 = new Label();
         mv.visitLabel(l0);
@@ -342,10 +966,12 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
         mv.visitVarInsn(ALOAD, 0);
         mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "ISO_8859_1", "Ljava/nio/charset/Charset;");
         mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "getBytes", "(Ljava/nio/charset/Charset;)[B", false);
-        mv.visitVarInsn(ALOAD, 1);
-        mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "ISO_8859_1", "Ljava/nio/charset/Charset;");
-        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "getBytes", "(Ljava/nio/charset/Charset;)[B", false);
-        mv.visitMethodInsn(INVOKESTATIC, nativeInterfaceClassName, "a", "([B[B)[B", false);
+        if (!fastEncoding) {
+            mv.visitVarInsn(ALOAD, 1);
+            mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "ISO_8859_1", "Ljava/nio/charset/Charset;");
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "getBytes", "(Ljava/nio/charset/Charset;)[B", false);
+            mv.visitMethodInsn(INVOKESTATIC, nativeInterfaceClassName, "a", "([B[B)[B", false);
+        }
         mv.visitVarInsn(ASTORE, 3);
         Label l1 = new Label();
         mv.visitLabel(l1);
@@ -379,11 +1005,29 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
         mv.visitLabel(l3);
         mv.visitLineNumber(48, l3);
         mv.visitFrame(Opcodes.F_CHOP, 1, null, 0, null);
+        // a negative val marks ISO-8859-1 plain text
+        mv.visitVarInsn(ILOAD, 2);
+        Label latin1 = new Label();
+        mv.visitJumpInsn(IFLT, latin1);
+        mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "UTF_8", "Ljava/nio/charset/Charset;");
+        Label decode = new Label();
+        mv.visitJumpInsn(GOTO, decode);
+        mv.visitLabel(latin1);
+        mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+        mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "ISO_8859_1", "Ljava/nio/charset/Charset;");
+        mv.visitLabel(decode);
+        mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[]{"java/nio/charset/Charset"});
+        mv.visitVarInsn(ASTORE, 4);
+        Label l7 = new Label();
+        mv.visitLabel(l7);
         mv.visitTypeInsn(NEW, "java/lang/String");
         mv.visitInsn(DUP);
         mv.visitVarInsn(ALOAD, 3);
-        mv.visitFieldInsn(GETSTATIC, "java/nio/charset/StandardCharsets", "UTF_8", "Ljava/nio/charset/Charset;");
+        mv.visitVarInsn(ALOAD, 4);
         mv.visitMethodInsn(INVOKESPECIAL, "java/lang/String", "<init>", "([BLjava/nio/charset/Charset;)V", false);
+        if (canonicalStrings) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "intern", "()Ljava/lang/String;", false);
+        }
         mv.visitInsn(ARETURN);
         Label l6 = new Label();
         mv.visitLabel(l6);
@@ -392,32 +1036,277 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
         mv.visitLocalVariable("key", "Ljava/lang/String;", null, l0, l6, 1);
         mv.visitLocalVariable("val", "B", null, l0, l6, 2);
         mv.visitLocalVariable("ori0", "[B", null, l1, l6, 3);
+        mv.visitLocalVariable("charset", "Ljava/nio/charset/Charset;", null, l7, l6, 4);
         mv.visitMaxs(4, 5);
         mv.visitEnd();
     }
 
+    private String accessorName(int index) {
+        return decMethodName + "$" + index;
+    }
+
+    // Keeps the decrypt sequence out of methods near a size limit, the call is as long as an ldc_w.
+    private void generateAccessor(int index, StrEnc strEnc) {
+        MethodVisitor mv = super.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, accessorName(index),
+                "()Ljava/lang/String;", null, null);
+        mv.visitCode();
+        visitStrDecInsn(mv, strEnc);
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(3, 0);
+        mv.visitEnd();
+    }
+
+    private String largeLiteralName(int index) {
+        return decMethodName + "$L" + index;
+    }
+
+    private String equalsGuardName(int index, boolean objectArgument) {
+        return decMethodName + (objectArgument ? "$Q" : "$E") + index;
+    }
+
+    // s.equals(literal) for a String s, or literal.equals(o) for any o, with o == null or not a
+    // String and a length mismatch answered before the literal is needed.
+    private void generateEqualsGuard(int index, String value, boolean objectArgument) {
+        MethodVisitor mv = super.visitMethod(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC,
+                equalsGuardName(index, objectArgument),
+                objectArgument ? "(Ljava/lang/Object;)Z" : "(Ljava/lang/String;)Z", null, null);
+        mv.visitCode();
+        Label mismatch = new Label();
+        mv.visitVarInsn(ALOAD, 0);
+        if (objectArgument) {
+            mv.visitTypeInsn(INSTANCEOF, "java/lang/String");
+            mv.visitJumpInsn(IFEQ, mismatch);
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitTypeInsn(CHECKCAST, "java/lang/String");
+        }
+        // throws the NullPointerException s.equals would for a null s
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "length", "()I", false);
+        mv.visitLdcInsn(value.length());
+        mv.visitJumpInsn(IF_ICMPNE, mismatch);
+        if (objectArgument) {
+            mv.visitMethodInsn(INVOKESTATIC, targetClassName, largeLiteralName(index), "()Ljava/lang/String;", false);
+            mv.visitVarInsn(ALOAD, 0);
+        } else {
+            mv.visitVarInsn(ALOAD, 0);
+            mv.visitMethodInsn(INVOKESTATIC, targetClassName, largeLiteralName(index), "()Ljava/lang/String;", false);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "equals", "(Ljava/lang/Object;)Z", false);
+        mv.visitInsn(IRETURN);
+        mv.visitLabel(mismatch);
+        mv.visitFrame(Opcodes.F_SAME, 0, null, 0, null);
+        mv.visitInsn(ICONST_0);
+        mv.visitInsn(IRETURN);
+        mv.visitMaxs(2, 1);
+        mv.visitEnd();
+    }
+
+    // Returns the literal from its field, decrypting and storing it on the first call.
+    private void generateCachedLiteral(ClassVisitor cv, int access, String owner, String name, LargeLiteral literal) {
+        FieldVisitor fv = cv.visitField(ACC_PRIVATE | ACC_STATIC | ACC_SYNTHETIC, name,
+                ClassStringField.STRING_DESC, null, null);
+        fv.visitEnd();
+
+        MethodVisitor mv = cv.visitMethod(access, name, "()Ljava/lang/String;", null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(GETSTATIC, owner, name, ClassStringField.STRING_DESC);
+        mv.visitInsn(DUP);
+        Label decrypted = new Label();
+        mv.visitJumpInsn(IFNONNULL, decrypted);
+        mv.visitInsn(POP);
+        if (literal.chunks.size() == 1) {
+            visitStrDecInsn(mv, literal.chunks.get(0));
+        } else {
+            visitChunksDecInsn(mv, literal);
+        }
+        mv.visitInsn(DUP);
+        mv.visitFieldInsn(PUTSTATIC, owner, name, ClassStringField.STRING_DESC);
+        mv.visitLabel(decrypted);
+        mv.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[]{"java/lang/String"});
+        mv.visitInsn(ARETURN);
+        mv.visitMaxs(5, 0);
+        mv.visitEnd();
+    }
+
+    private void visitChunksDecInsn(MethodVisitor mv, LargeLiteral literal) {
+        mv.visitTypeInsn(NEW, "java/lang/StringBuilder");
+        mv.visitInsn(DUP);
+        mv.visitLdcInsn(literal.length);
+        mv.visitMethodInsn(INVOKESPECIAL, "java/lang/StringBuilder", "<init>", "(I)V", false);
+        for (StrEnc chunk : literal.chunks) {
+            visitStrDecInsn(mv, chunk);
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "append",
+                    "(Ljava/lang/String;)Ljava/lang/StringBuilder;", false);
+        }
+        mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/StringBuilder", "toString", "()Ljava/lang/String;", false);
+        if (canonicalStrings) {
+            mv.visitMethodInsn(INVOKEVIRTUAL, "java/lang/String", "intern", "()Ljava/lang/String;", false);
+        }
+    }
+
+    /**
+     * Splits value into pieces of at most chunkSize bytes of UTF-8, never between the two halves
+     * of a surrogate pair.
+     */
+    static List<String> splitLiteral(String value, int chunkSize) {
+        List<String> chunks = new ArrayList<>();
+        int start = 0;
+        int bytes = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            int size = c < 0x80 ? 1 : c < 0x800 || Character.isSurrogate(c) ? 2 : 3;
+            if (bytes + size > chunkSize && i > start
+                    && !(Character.isLowSurrogate(c) && Character.isHighSurrogate(value.charAt(i - 1)))) {
+                chunks.add(value.substring(start, i));
+                start = i;
+                bytes = 0;
+            }
+            bytes += size;
+        }
+        chunks.add(value.substring(start));
+        return chunks;
+    }
+
+    public int getEncryptedCount() {
+        return encryptedCount;
+    }
+
+    // One guard per literal and form, its cached value shares the large literal accessors.
+    private void visitEqualsGuardInsn(MethodVisitor mv, String value, boolean objectArgument) {
+        encryptedCount++;
+        equalsGuardCount++;
+        encryptedLiterals.add(value);
+        needGenDecMethod = decMethodHolder == null;
+        Map<String, Integer> guards = objectArgument ? objectEqualsGuards : stringEqualsGuards;
+        Integer index = stringEqualsGuards.get(value);
+        if (index == null) {
+            index = objectEqualsGuards.get(value);
+        }
+        if (index == null) {
+            List<String> chunks = value.length() > literalChunkSize / 3
+                    ? splitLiteral(value, literalChunkSize) : Collections.singletonList(value);
+            List<StrEnc> encrypted = new ArrayList<>();
+            for (String chunk : chunks) {
+                encrypted.add(generateKeyAndEncryptString(chunk));
+            }
+            if (chunks.size() > 1) {
+                largeLiteralCount++;
+            }
+            index = largeLiterals.size();
+            largeLiterals.add(new LargeLiteral(value.length(), encrypted));
+        }
+        guards.put(value, index);
+        mv.visitMethodInsn(INVOKESTATIC, targetClassName, equalsGuardName(index, objectArgument),
+                objectArgument ? "(Ljava/lang/Object;)Z" : "(Ljava/lang/String;)Z", false);
+    }
+
+    private void visitStrDecInsn(MethodVisitor mv, String value) {
+        encryptedCount++;
+        encryptedLiterals.add(value);
+        // a char takes at most 3 bytes of UTF-8
+        if (value.length() > literalChunkSize / 3) {
+            List<String> chunks = splitLiteral(value, literalChunkSize);
+            if (chunks.size() > 1) {
+                visitLargeLiteralInsn(mv, value.length(), chunks);
+                return;
+            }
+        }
+        StrEnc strEnc = generateKeyAndEncryptString(value);
+        if (currentMethodPolicy == StringMistConfig.MethodSizePolicy.ACCESSOR) {
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, targetClassName, accessorName(accessors.size()),
+                    "()Ljava/lang/String;", false);
+            accessors.add(strEnc);
+            return;
+        }
+        visitStrDecInsn(mv, strEnc);
+    }
+
+    private void visitLargeLiteralInsn(MethodVisitor mv, int length, List<String> chunks) {
+        largeLiteralCount++;
+        List<StrEnc> encrypted = new ArrayList<>();
+        for (String chunk : chunks) {
+            encrypted.add(generateKeyAndEncryptString(chunk));
+        }
+        LargeLiteral literal = new LargeLiteral(length, encrypted);
+        if (isTargetClassInterface) {
+            // No private fields and methods in interfaces, decrypt all chunks at every use.
+            visitChunksDecInsn(mv, literal);
+            return;
+        }
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, targetClassName, largeLiteralName(largeLiterals.size()),
+                "()Ljava/lang/String;", false);
+        largeLiterals.add(literal);
+    }
+
+    private void visitStrDecInsn(MethodVisitor mv, StrEnc strEnc) {
+        mv.visitLdcInsn(strEnc.encrypted);
+        mv.visitLdcInsn(strEnc.blowfishKey);
+        mv.visitLdcInsn(strEnc.xorVal);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC,
+                decMethodClassName,
+                decMethodName,
+                "(Ljava/lang/String;Ljava/lang/String;B)Ljava/lang/String;", false);
+    }
+
+    private Random randomFor(String purpose) {
+        if (seed == null) {
+            return random;
+        }
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(seed.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(purpose.getBytes(StandardCharsets.UTF_8));
+            byte[] md = digest.digest();
+            long derived = 0;
+            for (int i = 0; i < 8; i++) {
+                derived = derived << 8 | md[i] & 0xff;
+            }
+            return new Random(derived);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     private StrEnc generateKeyAndEncryptString(String in){
         StrEnc strEnc = new StrEnc();
+        Random literalRandom = randomFor(targetClassName + "#" + literalIndex++);
 
-        strEnc.xorVal = (byte)(random.nextInt(0x7C) + 1);
+        strEnc.xorVal = (byte)(literalRandom.nextInt(0x7C) + 1);
+        boolean latin1 = isLatin1(in);
+        if (latin1) {
+            // the sign bit tells the decrypt method which charset to decode with
+            strEnc.xorVal |= 0x80;
+        }
 
-        byte[] ori0 = in.getBytes(StandardCharsets.UTF_8);
+        byte[] ori0 = in.getBytes(latin1 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
         for(int i = 0; i < ori0.length; i++){
             ori0[i] ^= strEnc.xorVal;
         }
+        if (fastEncoding) {
+            strEnc.blowfishKey = "";
+            strEnc.encrypted = new String(ori0, StandardCharsets.ISO_8859_1);
+            return strEnc;
+        }
 
 
 //        int blowfishKeyLen = 10 + random.nextInt(10);
-        int blowfishKeyLen = 32;
-        byte[] blowfishKey = new byte[blowfishKeyLen];
+        int blowfishKeyLen = blowfishKey.length;
         for (int i = 0; i < blowfishKeyLen; i++){
-            blowfishKey[i] = (byte)(random.nextInt(0x7C) + 1);
+            blowfishKey[i] = (byte)(literalRandom.nextInt(0x7C) + 1);
         }
         strEnc.blowfishKey = new String(blowfishKey, StandardCharsets.ISO_8859_1);
 
-        Blowfish blowfish = new Blowfish(blowfishKey);
-        byte[] encrypted = blowfish.encryptBytes(ori0);
-        strEnc.encrypted = new String(encrypted, StandardCharsets.ISO_8859_1);
+        if (blowfish == null) {
+            blowfish = new Blowfish(blowfishKey);
+        } else {
+            blowfish.setKey(blowfishKey);
+        }
+        int encryptedLength = Blowfish.encryptedLength(ori0.length);
+        if (encryptBuffer.length < encryptedLength) {
+            encryptBuffer = new byte[Math.max(encryptedLength, encryptBuffer.length * 2)];
+        }
+        blowfish.encryptBytes(ori0, 0, ori0.length, literalRandom.nextLong(), encryptBuffer, 0);
+        strEnc.encrypted = new String(encryptBuffer, 0, encryptedLength, StandardCharsets.ISO_8859_1);
 
 //        System.out.println("ori0: " + Base64.getEncoder().encodeToString(ori0));
 //        System.out.println("encrypted: " + Base64.getEncoder().encodeToString(encrypted));
@@ -430,7 +1319,50 @@ public class StringMistClassVisitor extends ClassVisitor implements Opcodes {
     }
 
     private boolean canEncrypted(String value) {
+        return canEncrypted(value, true);
+    }
+
+    /**
+     * @param count false while a method is only measured, so policy skips are counted once
+     */
+    private boolean canEncrypted(String value, boolean count) {
+        if (isNativeInterfaceClass || currentMethodPolicy == StringMistConfig.MethodSizePolicy.SKIP
+                || !isEncryptable(value)) {
+            return false;
+        }
+        if (literalPolicy != null && !literalPolicy.accepts(value,
+                currentLogArguments != null && currentLogArguments.contains(value), currentAnnotations)) {
+            if (count) {
+                policySkippedCount++;
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private static void addAnnotations(Set<String> annotations, List<AnnotationNode> nodes) {
+        if (nodes != null) {
+            for (AnnotationNode node : nodes) {
+                annotations.add(node.desc);
+            }
+        }
+    }
+
+    /**
+     * Literals of ASCII and Latin-1 characters only are encrypted as ISO-8859-1, one byte per char,
+     * which the runtime copies without validating, into a compact string on JDK 9+.
+     */
+    static boolean isLatin1(String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (value.charAt(i) > 0xFF) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isEncryptable(String value) {
         // Max string length is 65535, should check the encrypted length.
-        return !isNativeInterfaceClass && !TextUtils.isEmptyAfterTrim(value) && value.length() < 65535;
+        return !TextUtils.isEmptyAfterTrim(value) && value.length() < 65535;
     }
 }
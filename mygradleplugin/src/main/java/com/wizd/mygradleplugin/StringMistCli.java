@@ -0,0 +1,387 @@
+package com.wizd.mygradleplugin;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Runs StringMist outside of Gradle on a prebuilt jar or class directory, e.g. to harden CI
+ * artifacts or to profile the engine without AGP in the way.
+ *
+ * <pre>
+ * StringMistCli --native-interface com.foo.NativeInterface [--exclude com.foo.Bar]...
+ *               [--include-jar okhttp.jar]... [--seed secret] [--threads n]
+ *               [--max-in-flight n] [--compression stored|fast|default|parallel]
+ *               [--rewrite-mode light|full] [--huge-method-limit n] [--inline-limit n]
+ *               [--method-size-policy accessor|skip] [--granularity class|package|shared]
+ *               [--shared-holders n] [--literal-chunk-size n] [--canonical-strings]
+ *               [--encrypt-literal rule]... [--skip-literal rule]...
+ *               [--no-equals-guards] [--lazy-interface-constants] [--mode full|fast|off] [--verbose]
+ *               input.jar|inputDir output.jar|outputDir
+ * StringMistCli --dry-run --native-interface com.foo.NativeInterface [options]... input.jar|inputDir
+ * </pre>
+ */
+public class StringMistCli {
+
+    private static final String USAGE = "usage: StringMistCli --native-interface <class> [--exclude <class>]..."
+            + " [--include-jar <jar>]... [--seed <seed>] [--threads <n>] [--max-in-flight <n>]"
+            + " [--compression stored|fast|default|parallel] [--rewrite-mode light|full]"
+            + " [--huge-method-limit <n>] [--inline-limit <n>] [--method-size-policy accessor|skip]"
+            + " [--granularity class|package|shared] [--shared-holders <n>]"
+            + " [--literal-chunk-size <n>] [--canonical-strings] [--encrypt-literal <rule>]..."
+            + " [--skip-literal <rule>]..."
+            + " [--no-equals-guards] [--lazy-interface-constants] [--mode full|fast|off] [--verbose]"
+            + " <input> <output>, or --dry-run [options] <input>";
+
+    private interface Job {
+        void run() throws IOException;
+    }
+
+    public static void main(String[] args) {
+        System.exit(exitCode(args));
+    }
+
+    /**
+     * @return 0 on success, 1 when transforming failed, 2 for bad arguments
+     */
+    static int exitCode(String[] args) {
+        try {
+            return run(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            return 2;
+        }
+    }
+
+    static int run(String[] args) {
+        String nativeInterfaceClass = null;
+        String seed = null;
+        List<String> excludeClasses = new ArrayList<>();
+        List<String> includeJars = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int maxInFlight = 256;
+        StringMistConfig.Compression compression = StringMistConfig.Compression.DEFAULT;
+        StringMistConfig.RewriteMode rewriteMode = StringMistConfig.RewriteMode.LIGHT;
+        int hugeMethodLimit = StringMistConfig.DEFAULT_HUGE_METHOD_LIMIT;
+        int inlineLimit = StringMistConfig.DEFAULT_INLINE_LIMIT;
+        StringMistConfig.MethodSizePolicy methodSizePolicy = StringMistConfig.MethodSizePolicy.ACCESSOR;
+        StringMistConfig.DecMethodGranularity granularity = StringMistConfig.DecMethodGranularity.CLASS;
+        int sharedHolders = 16;
+        int literalChunkSize = StringMistConfig.DEFAULT_LITERAL_CHUNK_SIZE;
+        boolean canonicalStrings = false;
+        List<String> encryptLiterals = new ArrayList<>();
+        List<String> skipLiterals = new ArrayList<>();
+        boolean equalsGuards = true;
+        boolean lazyInterfaceConstants = false;
+        StringMistConfig.Mode mode = StringMistConfig.Mode.FULL;
+        boolean verbose = false;
+        boolean dryRun = false;
+        List<String> paths = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if ("--native-interface".equals(arg)) {
+                nativeInterfaceClass = value(args, ++i, arg);
+            } else if ("--exclude".equals(arg)) {
+                excludeClasses.add(value(args, ++i, arg));
+            } else if ("--include-jar".equals(arg)) {
+                includeJars.add(value(args, ++i, arg));
+            } else if ("--seed".equals(arg)) {
+                seed = value(args, ++i, arg);
+            } else if ("--threads".equals(arg)) {
+                threads = Integer.parseInt(value(args, ++i, arg));
+            } else if ("--max-in-flight".equals(arg)) {
+                maxInFlight = Integer.parseInt(value(args, ++i, arg));
+            } else if ("--compression".equals(arg)) {
+                compression = StringMistConfig.Compression.parse(value(args, ++i, arg));
+            } else if ("--rewrite-mode".equals(arg)) {
+                rewriteMode = StringMistConfig.RewriteMode.parse(value(args, ++i, arg));
+            } else if ("--huge-method-limit".equals(arg)) {
+                hugeMethodLimit = Integer.parseInt(value(args, ++i, arg));
+            } else if ("--inline-limit".equals(arg)) {
+                inlineLimit = Integer.parseInt(value(args, ++i, arg));
+            } else if ("--method-size-policy".equals(arg)) {
+                methodSizePolicy = StringMistConfig.MethodSizePolicy.parse(value(args, ++i, arg));
+            } else if ("--granularity".equals(arg)) {
+                granularity = StringMistConfig.DecMethodGranularity.parse(value(args, ++i, arg));
+            } else if ("--shared-holders".equals(arg)) {
+                sharedHolders = Integer.parseInt(value(args, ++i, arg));
+            } else if ("--literal-chunk-size".equals(arg)) {
+                literalChunkSize = Integer.parseInt(value(args, ++i, arg));
+            } else if ("--canonical-strings".equals(arg)) {
+                canonicalStrings = true;
+            } else if ("--encrypt-literal".equals(arg)) {
+                encryptLiterals.add(value(args, ++i, arg));
+            } else if ("--skip-literal".equals(arg)) {
+                skipLiterals.add(value(args, ++i, arg));
+            } else if ("--no-equals-guards".equals(arg)) {
+                equalsGuards = false;
+            } else if ("--lazy-interface-constants".equals(arg)) {
+                lazyInterfaceConstants = true;
+            } else if ("--mode".equals(arg)) {
+                mode = StringMistConfig.Mode.parse(value(args, ++i, arg));
+            } else if ("--verbose".equals(arg)) {
+                verbose = true;
+            } else if ("--dry-run".equals(arg)) {
+                dryRun = true;
+            } else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("unknown option " + arg);
+            } else {
+                paths.add(arg);
+            }
+        }
+        if (nativeInterfaceClass == null) {
+            throw new IllegalArgumentException("--native-interface is required");
+        }
+        if (dryRun ? paths.size() != 1 : paths.size() != 2) {
+            throw new IllegalArgumentException(dryRun ? "expected one input" : "expected one input and one output");
+        }
+
+        final File input = new File(paths.get(0));
+        if (!input.exists()) {
+            throw new IllegalArgumentException(input + " does not exist");
+        }
+        // An explicitly passed jar is always transformed.
+        if (input.isFile()) {
+            includeJars.add(input.getName());
+        }
+
+        StringMistConfig config = new StringMistConfig(nativeInterfaceClass.replace('.', '/'),
+                excludeClasses.toArray(new String[0]), includeJars.toArray(new String[0]));
+        config.seed = seed;
+        config.threads = threads;
+        config.jarMaxInFlight = maxInFlight;
+        config.jarCompression = compression;
+        config.rewriteMode = rewriteMode;
+        config.hugeMethodLimit = hugeMethodLimit;
+        config.inlineLimit = inlineLimit;
+        config.methodSizePolicy = methodSizePolicy;
+        config.decMethodGranularity = granularity;
+        config.sharedHolders = sharedHolders;
+        config.literalChunkSize = literalChunkSize;
+        config.canonicalStrings = canonicalStrings;
+        config.encryptLiterals = encryptLiterals.toArray(new String[0]);
+        config.skipLiterals = skipLiterals.toArray(new String[0]);
+        config.equalsGuards = equalsGuards;
+        config.lazyInterfaceConstants = lazyInterfaceConstants;
+        config.mode = mode;
+        if (dryRun) {
+            return dryRun(config, input);
+        }
+
+        final File output = new File(paths.get(1));
+        final StringMistClassInjector injector = new StringMistClassInjector(config);
+        StringMistMetrics metrics = new StringMistMetrics();
+        injector.setMetrics(metrics);
+        injector.setVerbose(verbose);
+
+        long start = System.nanoTime();
+        List<Job> jobs;
+        try {
+            injector.indexInterfaceConstants(Collections.singletonList(input));
+            jobs = collectJobs(injector, input, output);
+        } catch (IOException e) {
+            System.err.println("failed to scan " + input + ": " + e);
+            return 1;
+        }
+        System.out.println(String.format("StringMist: %d files from %s with %d threads", jobs.size(), input, threads));
+
+        boolean failed = runJobs(jobs, threads);
+        injector.shutdown();
+        if (!failed) {
+            try {
+                writeHolders(injector, input, output);
+            } catch (IOException e) {
+                System.err.println("failed to write holder classes: " + e);
+                failed = true;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.print(metrics.report());
+        System.out.println(String.format("  wall time: %d ms", TimeUnit.NANOSECONDS.toMillis(elapsed)));
+        return failed ? 1 : 0;
+    }
+
+    private static int dryRun(StringMistConfig config, File input) {
+        long start = System.nanoTime();
+        StringMistDryRun dryRun = new StringMistDryRun(config);
+        try {
+            if (input.isFile()) {
+                dryRun.analyzeJar(input);
+            } else {
+                analyzeDirectory(dryRun, input.toPath());
+            }
+            System.out.print(dryRun.report());
+        } catch (IOException e) {
+            System.err.println("StringMist: " + e);
+            return 1;
+        } finally {
+            dryRun.shutdown();
+        }
+        System.out.println(String.format("  wall time: %d ms",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+        return 0;
+    }
+
+    private static void analyzeDirectory(final StringMistDryRun dryRun, Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".class")) {
+                    dryRun.analyzeClass(file.toFile());
+                } else if (name.endsWith(".jar")) {
+                    dryRun.analyzeJar(file.toFile());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException(option + " needs a value");
+        }
+        return args[index];
+    }
+
+    /**
+     * Holder classes go into an output directory, next to an output jar they are packed into
+     * name-holders.jar, which has to ship together with it.
+     */
+    private static void writeHolders(StringMistClassInjector injector, File input, File output) throws IOException {
+        if (input.isDirectory()) {
+            injector.writeHolders(output);
+            return;
+        }
+        Map<String, byte[]> holders = injector.generateHolders();
+        if (holders.isEmpty()) {
+            return;
+        }
+        String name = output.getName();
+        if (name.endsWith(".jar")) {
+            name = name.substring(0, name.length() - ".jar".length());
+        }
+        File holdersJar = new File(output.getAbsoluteFile().getParentFile(), name + "-holders.jar");
+        ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(holdersJar));
+        try {
+            for (Map.Entry<String, byte[]> holder : holders.entrySet()) {
+                zos.putNextEntry(new ZipEntry(holder.getKey() + ".class"));
+                zos.write(holder.getValue());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        System.out.println(String.format("StringMist: %d holder classes written to %s", holders.size(), holdersJar));
+    }
+
+    private static List<Job> collectJobs(final StringMistClassInjector injector, File input, File output)
+            throws IOException {
+        final List<Job> jobs = new ArrayList<>();
+        if (input.isFile()) {
+            final File jarIn = input;
+            final File jarOut = output;
+            File parent = jarOut.getAbsoluteFile().getParentFile();
+            if (parent != null) {
+                Files.createDirectories(parent.toPath());
+            }
+            jobs.add(new Job() {
+                @Override
+                public void run() throws IOException {
+                    injector.doFog2Jar(jarIn, jarOut);
+                }
+            });
+            return jobs;
+        }
+
+        final Path root = input.toPath();
+        final Path outRoot = output.toPath();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(outRoot.resolve(root.relativize(dir)));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                final Path relative = root.relativize(file);
+                final File fileIn = file.toFile();
+                final File fileOut = outRoot.resolve(relative).toFile();
+                jobs.add(new Job() {
+                    @Override
+                    public void run() throws IOException {
+                        if (fileIn.getName().endsWith(".jar")) {
+                            injector.doFog2Jar(fileIn, fileOut);
+                        } else {
+                            // classes, other files are hardlinked or copied
+                            injector.doFog2File(relative, fileIn, fileOut);
+                        }
+                    }
+                });
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return jobs;
+    }
+
+    private static boolean runJobs(List<Job> jobs, int threads) {
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        final int total = jobs.size();
+        final AtomicInteger done = new AtomicInteger();
+        final int step = Math.max(1, total / 20);
+        List<Future<?>> futures = new ArrayList<>(total);
+        for (final Job job : jobs) {
+            futures.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    job.run();
+                    int finished = done.incrementAndGet();
+                    if (finished % step == 0 || finished == total) {
+                        System.out.println(String.format("  %d/%d (%d%%)", finished, total, finished * 100 / total));
+                    }
+                    return null;
+                }
+            }));
+        }
+
+        boolean failed = false;
+        try {
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    failed = true;
+                    System.err.println("StringMist: " + e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failed = true;
+        } finally {
+            executor.shutdownNow();
+        }
+        return failed;
+    }
+}
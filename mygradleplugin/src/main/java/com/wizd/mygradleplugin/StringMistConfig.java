@@ -0,0 +1,171 @@
+package com.wizd.mygradleplugin;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+
+/**
+ * Everything that affects the bytes StringMist writes. Two configs with the same
+ * {@link #fingerprint()} must produce interchangeable output for the same input.
+ */
+public class StringMistConfig {
+    /**
+     * How output jar entries are compressed. Dex reads them again right away, so STORED or FAST
+     * usually beat the DEFAULT level, PARALLEL deflates entries on the worker threads.
+     */
+    public enum Compression {
+        STORED, FAST, DEFAULT, PARALLEL;
+
+        public static Compression parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * LIGHT keeps the compressed stack map frames and copies methods without literals as they are,
+     * FULL expands the frames of every method like StringMist always did.
+     */
+    public enum RewriteMode {
+        LIGHT, FULL;
+
+        public static RewriteMode parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * What to do with a method whose encrypted literals would push it over a size limit: call
+     * accessors that hold the decrypt sequences, or leave its literals in plain text.
+     */
+    public enum MethodSizePolicy {
+        ACCESSOR, SKIP;
+
+        public static MethodSizePolicy parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Where the decrypt method lives: a private one in every class with literals (hardest to hook
+     * all of them), one holder class per package, or sharedHolders classes next to the native
+     * interface picked by class name hash (fewest methods to verify, compile and count).
+     */
+    public enum DecMethodGranularity {
+        CLASS, PACKAGE, SHARED;
+
+        public static DecMethodGranularity parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * FULL encrypts literals with Blowfish behind the native decryptor. FAST only XORs them, for
+     * debug builds that should cost next to nothing to transform and run; the plugin then leaves
+     * jars alone. OFF treats every class as excluded.
+     */
+    public enum Mode {
+        FULL, FAST, OFF;
+
+        public static Mode parse(String name) {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    // HotSpot's HugeMethodLimit and FreqInlineSize, in bytes of bytecode.
+    public static final int DEFAULT_HUGE_METHOD_LIMIT = 8000;
+    public static final int DEFAULT_INLINE_LIMIT = 325;
+
+    // Literals over this many bytes of UTF-8 are encrypted in chunks. Twice the maximum plus the IV
+    // and padding still fits a constant pool string, whatever bytes the ciphertext holds.
+    public static final int DEFAULT_LITERAL_CHUNK_SIZE = 8192;
+    public static final int MAX_LITERAL_CHUNK_SIZE = 32000;
+
+    // Keep in sync with pom.version in build.gradle, outputs of older plugins are never reused.
+    public static final String PLUGIN_VERSION = "1.0";
+    // Bumped when encrypted literals or the decrypt methods change, so that no cached class meets a
+    // decrypt method of another format. 2: ISO-8859-1 literals.
+    public static final int LITERAL_FORMAT = 2;
+
+    public String nativeInterfaceClass;
+    public Mode mode = Mode.FULL;
+    public String[] excludeClasses = new String[0];
+    public String[] includeJars = new String[0];
+    // secret seed for reproducible output, null keeps the random keys of every build
+    public String seed;
+    public Compression jarCompression = Compression.DEFAULT;
+    public RewriteMode rewriteMode = RewriteMode.LIGHT;
+    // 0 disables a limit
+    public int hugeMethodLimit = DEFAULT_HUGE_METHOD_LIMIT;
+    public int inlineLimit = DEFAULT_INLINE_LIMIT;
+    public MethodSizePolicy methodSizePolicy = MethodSizePolicy.ACCESSOR;
+    public DecMethodGranularity decMethodGranularity = DecMethodGranularity.CLASS;
+    public int sharedHolders = 16;
+    public int literalChunkSize = DEFAULT_LITERAL_CHUNK_SIZE;
+    // decrypted strings are interned, one instance per distinct literal like ldc constants
+    public boolean canonicalStrings;
+    // LiteralPolicy rules, literals are encrypted if one of encryptLiterals (or all, when empty) and
+    // none of skipLiterals match
+    public String[] encryptLiterals = new String[0];
+    public String[] skipLiterals = new String[0];
+    // String.equals against a literal compares the length before a cached decrypted value, see
+    // StringMistClassVisitor.setEqualsGuards
+    public boolean equalsGuards = true;
+    // String constants of interfaces are decrypted on first read through a holder class instead of
+    // in the interface's static initializer, see StringMistClassInjector.indexInterfaceConstants
+    public boolean lazyInterfaceConstants;
+
+    // Only affect speed and memory, not part of the fingerprint.
+    public int threads = Runtime.getRuntime().availableProcessors();
+    public int jarMaxInFlight = 256;
+
+    public StringMistConfig(String nativeInterfaceClass, String[] excludeClasses, String[] includeJars) {
+        this.nativeInterfaceClass = nativeInterfaceClass;
+        if (excludeClasses != null) {
+            this.excludeClasses = excludeClasses;
+        }
+        if (includeJars != null) {
+            this.includeJars = includeJars;
+        }
+    }
+
+    public String fingerprint() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("version=").append(PLUGIN_VERSION).append('\n');
+        sb.append("literalFormat=").append(LITERAL_FORMAT).append('\n');
+        sb.append("nativeInterfaceClass=").append(nativeInterfaceClass).append('\n');
+        sb.append("mode=").append(mode).append('\n');
+        sb.append("excludeClasses=");
+        for (String excludeClass : excludeClasses) {
+            sb.append(excludeClass).append(',');
+        }
+        sb.append('\n');
+        sb.append("includeJars=");
+        for (String includeJar : includeJars) {
+            sb.append(includeJar).append(',');
+        }
+        sb.append('\n');
+        sb.append("seed=").append(seed).append('\n');
+        sb.append("jarCompression=").append(jarCompression).append('\n');
+        sb.append("rewriteMode=").append(rewriteMode).append('\n');
+        sb.append("hugeMethodLimit=").append(hugeMethodLimit).append('\n');
+        sb.append("inlineLimit=").append(inlineLimit).append('\n');
+        sb.append("methodSizePolicy=").append(methodSizePolicy).append('\n');
+        sb.append("decMethodGranularity=").append(decMethodGranularity).append('\n');
+        sb.append("sharedHolders=").append(sharedHolders).append('\n');
+        sb.append("literalChunkSize=").append(literalChunkSize).append('\n');
+        sb.append("canonicalStrings=").append(canonicalStrings).append('\n');
+        sb.append("equalsGuards=").append(equalsGuards).append('\n');
+        sb.append("lazyInterfaceConstants=").append(lazyInterfaceConstants).append('\n');
+        sb.append("encryptLiterals=");
+        // one rule per line, regex rules may hold commas
+        for (String rule : encryptLiterals) {
+            sb.append(rule).append('\n');
+        }
+        sb.append('\n');
+        sb.append("skipLiterals=");
+        for (String rule : skipLiterals) {
+            sb.append(rule).append('\n');
+        }
+        sb.append('\n');
+        return MD5.getMessageDigest(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+}
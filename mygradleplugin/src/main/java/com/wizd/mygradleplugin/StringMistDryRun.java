@@ -0,0 +1,486 @@
+package com.wizd.mygradleplugin;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Runs the analysis and the rewrite of a real run in memory and only reports what it would do:
+ * encryptable literals per class, package and jar, how much the classes and their constant pools
+ * grow, and which literals sit in loops or static initializers. Nothing is written, so exclusions
+ * can be planned before StringMist is enabled on a module.
+ */
+public class StringMistDryRun {
+    private static final int TOP_ENTRIES = 20;
+    // label of the classes that come from directories rather than jars
+    public static final String CLASSES_SOURCE = "classes";
+
+    private final StringMistClassInjector injector;
+    private final JarMatcher includeJarsMatcher;
+    private final StringMistMetrics metrics = new StringMistMetrics();
+    private final int threads;
+    private ExecutorService executor;
+    private final List<Future<?>> pending = new ArrayList<>();
+
+    private final ConcurrentHashMap<String, Counts> classes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counts> packages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Counts> sources = new ConcurrentHashMap<>();
+    // jars outside includeJars, only scanned so they can be considered for it
+    private final ConcurrentHashMap<String, Counts> skippedJars = new ConcurrentHashMap<>();
+    private final Counts total = new Counts();
+    private final AtomicLong classesScanned = new AtomicLong();
+    private final AtomicLong classesExcluded = new AtomicLong();
+    private final AtomicLong literalsExcluded = new AtomicLong();
+
+    private static class Counts {
+        final AtomicLong classes = new AtomicLong();
+        final AtomicLong literals = new AtomicLong();
+        final AtomicLong literalBytes = new AtomicLong();
+        final AtomicLong inLoops = new AtomicLong();
+        final AtomicLong inClinit = new AtomicLong();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        final AtomicLong constantPoolIn = new AtomicLong();
+        final AtomicLong constantPoolOut = new AtomicLong();
+
+        void add(LiteralScanner scan, int bytesIn, int bytesOut, int constantPoolIn, int constantPoolOut) {
+            classes.incrementAndGet();
+            literals.addAndGet(scan.literals);
+            literalBytes.addAndGet(scan.literalBytes);
+            inLoops.addAndGet(scan.inLoops);
+            inClinit.addAndGet(scan.inClinit);
+            this.bytesIn.addAndGet(bytesIn);
+            this.bytesOut.addAndGet(bytesOut);
+            this.constantPoolIn.addAndGet(constantPoolIn);
+            this.constantPoolOut.addAndGet(constantPoolOut);
+        }
+
+        long growth() {
+            return bytesOut.get() - bytesIn.get();
+        }
+    }
+
+    public StringMistDryRun(StringMistConfig config) {
+        this.injector = new StringMistClassInjector(config);
+        this.injector.setVerbose(false);
+        this.injector.setMetrics(metrics);
+        this.includeJarsMatcher = new JarMatcher(config.includeJars);
+        this.threads = config.threads;
+    }
+
+    /**
+     * Queues one class file, see {@link #report()} for the results.
+     */
+    public void analyzeClass(final File classFile) {
+        submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                analyzeClass(CLASSES_SOURCE, Files.readAllBytes(classFile.toPath()));
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Queues the classes of a jar. Jars outside includeJars are only scanned for literals.
+     */
+    public void analyzeJar(File jar) throws IOException {
+        final String source = jar.getName();
+        final boolean included = includeJarsMatcher.match(source) != null;
+        ZipFile zip = StringMistClassInjector.openZip(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().endsWith(".class")) {
+                    continue;
+                }
+                final byte[] classBytes = readEntry(zip, entry);
+                submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (included) {
+                            analyzeClass(source, classBytes);
+                        } else {
+                            scanSkippedClass(source, classBytes);
+                        }
+                        return null;
+                    }
+                });
+            }
+        } finally {
+            zip.close();
+        }
+    }
+
+    private void analyzeClass(String source, byte[] classBytes) {
+        ClassReader cr = new ClassReader(classBytes);
+        String className = cr.getClassName();
+        if ("module-info".equals(className)) {
+            return;
+        }
+        classesScanned.incrementAndGet();
+        LiteralScanner scan = new LiteralScanner();
+        cr.accept(scan, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (injector.isExcludeClassName(className.replace('/', '.'))) {
+            classesExcluded.incrementAndGet();
+            literalsExcluded.addAndGet(scan.literals);
+            return;
+        }
+        if (scan.literals == 0) {
+            return;
+        }
+
+        byte[] transformed = injector.transformClass(classBytes);
+        int constantPoolIn = constantPoolSize(cr);
+        int constantPoolOut = constantPoolSize(new ClassReader(transformed));
+        int sizeOut = transformed.length;
+        int slash = className.lastIndexOf('/');
+        String packageName = slash < 0 ? "(default package)" : className.substring(0, slash);
+        counts(classes, className).add(scan, classBytes.length, sizeOut, constantPoolIn, constantPoolOut);
+        counts(packages, packageName).add(scan, classBytes.length, sizeOut, constantPoolIn, constantPoolOut);
+        counts(sources, source).add(scan, classBytes.length, sizeOut, constantPoolIn, constantPoolOut);
+        total.add(scan, classBytes.length, sizeOut, constantPoolIn, constantPoolOut);
+    }
+
+    private void scanSkippedClass(String source, byte[] classBytes) {
+        ClassReader cr = new ClassReader(classBytes);
+        if ("module-info".equals(cr.getClassName())) {
+            return;
+        }
+        LiteralScanner scan = new LiteralScanner();
+        cr.accept(scan, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        if (scan.literals > 0) {
+            counts(skippedJars, source).add(scan, 0, 0, 0, 0);
+        }
+    }
+
+    // constant pool count and entries, everything between the magic/version and the access flags
+    private static int constantPoolSize(ClassReader cr) {
+        return cr.header - 8;
+    }
+
+    private static Counts counts(ConcurrentHashMap<String, Counts> map, String key) {
+        Counts counts = map.get(key);
+        if (counts == null) {
+            Counts created = new Counts();
+            counts = map.putIfAbsent(key, created);
+            if (counts == null) {
+                counts = created;
+            }
+        }
+        return counts;
+    }
+
+    /**
+     * Waits for the queued classes and returns the report. Holder classes, if the granularity
+     * uses them, count towards the growth.
+     */
+    public String report() throws IOException {
+        await();
+        long holderBytes = 0;
+        Map<String, byte[]> holders = injector.generateHolders();
+        for (byte[] holder : holders.values()) {
+            holderBytes += holder.length;
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("StringMist dry run, nothing was written\n");
+        sb.append(String.format("  classes scanned: %d, with encryptable literals: %d, excluded: %d (%d literals)%n",
+                classesScanned.get(), total.classes.get(), classesExcluded.get(), literalsExcluded.get()));
+        sb.append(String.format("  encryptable literals: %d (%d bytes of UTF-8), encrypted: %d, in chunks: %d,"
+                        + " left plain by policy: %d%n", total.literals.get(), total.literalBytes.get(),
+                metrics.literalsEncrypted.get(), metrics.largeLiterals.get(), metrics.literalsLeftPlain.get()));
+        sb.append(String.format("  in loops: %d, in static initializers: %d%n",
+                total.inLoops.get(), total.inClinit.get()));
+        // every class initializer runs once, so this is the startup cost if all of them run
+        sb.append(String.format("  decrypt calls from static initializers at startup: at most %d%n",
+                total.inClinit.get()));
+        sb.append(String.format("  class bytes: %d -> %d (%s), constant pools: %d -> %d (%s)%n",
+                total.bytesIn.get(), total.bytesOut.get(), growth(total.bytesIn.get(), total.bytesOut.get()),
+                total.constantPoolIn.get(), total.constantPoolOut.get(),
+                growth(total.constantPoolIn.get(), total.constantPoolOut.get())));
+        sb.append(String.format("  decrypt methods and accessors added: %d, holder classes: %d (%d bytes)%n",
+                metrics.methodsAdded.get(), holders.size(), holderBytes));
+        sb.append(String.format("  methods crossing a size limit: %d%n", metrics.methodSizeWarnings.get()));
+
+        sb.append("  by jar:\n");
+        for (Map.Entry<String, Counts> entry : sorted(sources, Integer.MAX_VALUE)) {
+            appendLine(sb, entry.getKey(), entry.getValue(), true);
+        }
+        for (Map.Entry<String, Counts> entry : sorted(skippedJars, Integer.MAX_VALUE)) {
+            sb.append(String.format("    %s: %d literals in %d classes, not in includeJars%n", entry.getKey(),
+                    entry.getValue().literals.get(), entry.getValue().classes.get()));
+        }
+        sb.append(String.format("  top %d packages:%n", TOP_ENTRIES));
+        for (Map.Entry<String, Counts> entry : sorted(packages, TOP_ENTRIES)) {
+            appendLine(sb, entry.getKey(), entry.getValue(), true);
+        }
+        sb.append(String.format("  top %d classes:%n", TOP_ENTRIES));
+        for (Map.Entry<String, Counts> entry : sorted(classes, TOP_ENTRIES)) {
+            appendLine(sb, entry.getKey(), entry.getValue(), false);
+        }
+        return sb.toString();
+    }
+
+    private static void appendLine(StringBuilder sb, String name, Counts counts, boolean groups) {
+        String classCount = groups ? String.format(" in %d classes", counts.classes.get()) : "";
+        sb.append(String.format("    %s: %d literals%s, %d in loops, %d in <clinit>, %+d bytes%n",
+                name, counts.literals.get(), classCount, counts.inLoops.get(), counts.inClinit.get(),
+                counts.growth()));
+    }
+
+    private static String growth(long before, long after) {
+        return before == 0 ? "+0" : String.format("%+d, %+.1f%%", after - before, (after - before) * 100.0 / before);
+    }
+
+    private static List<Map.Entry<String, Counts>> sorted(Map<String, Counts> map, int limit) {
+        List<Map.Entry<String, Counts>> entries = new ArrayList<>(map.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, Counts>>() {
+            @Override
+            public int compare(Map.Entry<String, Counts> a, Map.Entry<String, Counts> b) {
+                int byLiterals = Long.compare(b.getValue().literals.get(), a.getValue().literals.get());
+                return byLiterals != 0 ? byLiterals : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return entries.size() > limit ? entries.subList(0, limit) : entries;
+    }
+
+    private synchronized void submit(Callable<Void> task) {
+        if (executor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "StringMist-dry-run-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        pending.add(executor.submit(task));
+    }
+
+    private void await() throws IOException {
+        List<Future<?>> futures;
+        synchronized (this) {
+            futures = new ArrayList<>(pending);
+            pending.clear();
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("dry run interrupted");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        injector.shutdown();
+    }
+
+    private static byte[] readEntry(ZipFile zip, ZipEntry entry) throws IOException {
+        InputStream is = zip.getInputStream(entry);
+        try {
+            long size = entry.getSize();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                    size > 0 && size < Integer.MAX_VALUE ? (int) size : 8192);
+            byte[] buffer = new byte[8192];
+            int c;
+            while ((c = is.read(buffer)) != -1) {
+                bytes.write(buffer, 0, c);
+            }
+            return bytes.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Counts the literals StringMistClassVisitor would encrypt, and those of them inside a loop
+     * (between a label and a later jump back to it) or in a static initializer. Constant values of
+     * static final fields move into the static initializer.
+     */
+    static class LiteralScanner extends ClassVisitor {
+        int literals;
+        long literalBytes;
+        int inLoops;
+        int inClinit;
+
+        LiteralScanner() {
+            super(Opcodes.ASM5);
+        }
+
+        @Override
+        public FieldVisitor visitField(int access, String name, String desc, String signature, Object value) {
+            if ((access & Opcodes.ACC_STATIC) != 0 && (access & Opcodes.ACC_FINAL) != 0
+                    && value instanceof String && StringMistClassVisitor.isEncryptable((String) value)) {
+                count((String) value);
+                inClinit++;
+            }
+            return null;
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String desc, String signature,
+                                         String[] exceptions) {
+            final boolean clinit = "<clinit>".equals(name);
+            return new MethodVisitor(api) {
+                private final Map<Label, Integer> labels = new HashMap<>();
+                private final List<Integer> literalPositions = new ArrayList<>();
+                // pairs of start and end positions of backward jumps
+                private final List<Integer> loops = new ArrayList<>();
+                private int position;
+
+                @Override
+                public void visitLabel(Label label) {
+                    labels.put(label, position);
+                }
+
+                @Override
+                public void visitLdcInsn(Object cst) {
+                    position++;
+                    if (cst instanceof String && StringMistClassVisitor.isEncryptable((String) cst)) {
+                        count((String) cst);
+                        literalPositions.add(position);
+                        if (clinit) {
+                            inClinit++;
+                        }
+                    }
+                }
+
+                @Override
+                public void visitJumpInsn(int opcode, Label label) {
+                    position++;
+                    jump(label);
+                }
+
+                @Override
+                public void visitTableSwitchInsn(int min, int max, Label dflt, Label... targets) {
+                    position++;
+                    jump(dflt);
+                    for (Label target : targets) {
+                        jump(target);
+                    }
+                }
+
+                @Override
+                public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] targets) {
+                    position++;
+                    jump(dflt);
+                    for (Label target : targets) {
+                        jump(target);
+                    }
+                }
+
+                private void jump(Label label) {
+                    Integer target = labels.get(label);
+                    if (target != null) {
+                        loops.add(target);
+                        loops.add(position);
+                    }
+                }
+
+                @Override
+                public void visitInsn(int opcode) {
+                    position++;
+                }
+
+                @Override
+                public void visitIntInsn(int opcode, int operand) {
+                    position++;
+                }
+
+                @Override
+                public void visitVarInsn(int opcode, int var) {
+                    position++;
+                }
+
+                @Override
+                public void visitTypeInsn(int opcode, String type) {
+                    position++;
+                }
+
+                @Override
+                public void visitFieldInsn(int opcode, String owner, String name, String desc) {
+                    position++;
+                }
+
+                @Override
+                public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                    position++;
+                }
+
+                @Override
+                public void visitIincInsn(int var, int increment) {
+                    position++;
+                }
+
+                @Override
+                public void visitEnd() {
+                    for (int literal : literalPositions) {
+                        for (int i = 0; i < loops.size(); i += 2) {
+                            if (loops.get(i) <= literal && literal <= loops.get(i + 1)) {
+                                inLoops++;
+                                break;
+                            }
+                        }
+                    }
+                }
+            };
+        }
+
+        private void count(String value) {
+            literals++;
+            literalBytes += value.getBytes(StandardCharsets.UTF_8).length;
+        }
+    }
+}
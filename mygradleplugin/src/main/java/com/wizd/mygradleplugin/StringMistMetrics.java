@@ -0,0 +1,109 @@
+package com.wizd.mygradleplugin;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters shared by every thread of one run, printed once at the end of it.
+ */
+public class StringMistMetrics {
+    public final AtomicLong classesTransformed = new AtomicLong();
+    public final AtomicLong classesCopied = new AtomicLong();
+    public final AtomicLong classesFromCache = new AtomicLong();
+    public final AtomicLong classesWithoutLiterals = new AtomicLong();
+    public final AtomicLong methodsCopied = new AtomicLong();
+    public final AtomicLong jarsTransformed = new AtomicLong();
+    public final AtomicLong jarsFromCache = new AtomicLong();
+    public final AtomicLong literalsEncrypted = new AtomicLong();
+    public final AtomicLong largeLiterals = new AtomicLong();
+    public final AtomicLong literalsLeftPlain = new AtomicLong();
+    public final AtomicLong equalsGuards = new AtomicLong();
+    public final AtomicLong methodSizeWarnings = new AtomicLong();
+    public final AtomicLong methodsAdded = new AtomicLong();
+    public final AtomicLong holderClasses = new AtomicLong();
+    // files of class directories passed through as they are
+    public final AtomicLong filesLinked = new AtomicLong();
+    public final AtomicLong filesCopied = new AtomicLong();
+    public final AtomicLong bytesIn = new AtomicLong();
+    public final AtomicLong bytesOut = new AtomicLong();
+    public final AtomicLong asmNanos = new AtomicLong();
+    public final AtomicLong compressNanos = new AtomicLong();
+    // include and exclude rules in config order, registered before the run starts
+    private final Map<String, AtomicLong> ruleHits = new LinkedHashMap<>();
+    // plain text -> uses, only filled with canonicalStrings
+    private final Map<String, AtomicLong> literalUses = new ConcurrentHashMap<>();
+
+    public synchronized void addRule(String rule) {
+        if (!ruleHits.containsKey(rule)) {
+            ruleHits.put(rule, new AtomicLong());
+        }
+    }
+
+    public void countRuleHit(String rule) {
+        AtomicLong hits;
+        synchronized (this) {
+            hits = ruleHits.get(rule);
+        }
+        if (hits != null) {
+            hits.incrementAndGet();
+        }
+    }
+
+    public void countLiteralUses(List<String> literals) {
+        for (String literal : literals) {
+            AtomicLong uses = literalUses.get(literal);
+            if (uses == null) {
+                AtomicLong created = new AtomicLong();
+                uses = literalUses.putIfAbsent(literal, created);
+                if (uses == null) {
+                    uses = created;
+                }
+            }
+            uses.incrementAndGet();
+        }
+    }
+
+    public String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("StringMist report\n");
+        sb.append(String.format("  classes transformed: %d, copied: %d, from cache: %d%n",
+                classesTransformed.get(), classesCopied.get(), classesFromCache.get()));
+        sb.append(String.format("  classes without literals: %d, methods copied as is: %d%n",
+                classesWithoutLiterals.get(), methodsCopied.get()));
+        sb.append(String.format("  jars transformed: %d, from cache: %d%n",
+                jarsTransformed.get(), jarsFromCache.get()));
+        sb.append(String.format("  files passed through: %d hardlinked, %d copied%n",
+                filesLinked.get(), filesCopied.get()));
+        sb.append(String.format("  literals encrypted: %d, methods crossing a size limit: %d%n",
+                literalsEncrypted.get(), methodSizeWarnings.get()));
+        sb.append(String.format("  literals encrypted in chunks: %d, left plain by encryptLiterals/skipLiterals: %d%n",
+                largeLiterals.get(), literalsLeftPlain.get()));
+        sb.append(String.format("  equals calls on literals guarded: %d%n", equalsGuards.get()));
+        sb.append(String.format("  decrypt methods and accessors added: %d, holder classes: %d%n",
+                methodsAdded.get(), holderClasses.get()));
+        if (!literalUses.isEmpty()) {
+            long uses = 0;
+            long saved = 0;
+            for (Map.Entry<String, AtomicLong> entry : literalUses.entrySet()) {
+                uses += entry.getValue().get();
+                // every use beyond the first no longer keeps its own copy, counted as a String
+                // object plus its UTF-16 array
+                saved += (entry.getValue().get() - 1) * (40 + 2L * entry.getKey().length());
+            }
+            sb.append(String.format("  canonical strings: %d distinct of %d uses, at least %d bytes of copies saved%n",
+                    literalUses.size(), uses, saved));
+        }
+        sb.append(String.format("  class bytes in: %d, out: %d%n", bytesIn.get(), bytesOut.get()));
+        sb.append(String.format("  ASM + encryption CPU time: %d ms%n", asmNanos.get() / 1000000));
+        sb.append(String.format("  jar compression time: %d ms%n", compressNanos.get() / 1000000));
+        synchronized (this) {
+            for (Map.Entry<String, AtomicLong> entry : ruleHits.entrySet()) {
+                sb.append(String.format("  %s: %d hits%n", entry.getKey(), entry.getValue().get()));
+            }
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,213 @@
+package com.wizd.mygradleplugin;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Content-addressed store of transformed classes and jars, shared by every build on the machine.
+ *
+ * Entries are named by a hash of the input bytes plus {@link StringMistConfig#fingerprint()}, so a
+ * clean build or a branch switch reuses whatever was encrypted before. Entries are published with an
+ * atomic rename and never modified afterwards, which keeps parallel Gradle processes from seeing
+ * half written files. The last modified time of an entry is bumped on every hit and {@link #trim()}
+ * evicts the least recently used entries once the cache grows over its size limit.
+ */
+public class TransformCache {
+    private static final String LOCK_FILE_NAME = "cache.lock";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final File cacheDir;
+    private final long maxSize;
+
+    public TransformCache(File cacheDir, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.maxSize = maxSize;
+    }
+
+    public static String keyOf(byte[] input, String fingerprint) {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+        digest.update(input);
+        return toHex(digest.digest());
+    }
+
+    public static String keyOf(File input, String fingerprint) throws IOException {
+        MessageDigest digest = newDigest();
+        digest.update(fingerprint.getBytes(StandardCharsets.UTF_8));
+        InputStream is = Files.newInputStream(input.toPath());
+        try {
+            byte[] buffer = new byte[64 * 1024];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Copies the entry for key to output.
+     * @return false on a miss, output is left untouched in that case
+     */
+    public boolean fetch(String key, File output) {
+        File entry = entryFile(key);
+        if (!entry.isFile()) {
+            return false;
+        }
+        try {
+            Files.copy(entry.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            // Evicted by another process in the meantime.
+            return false;
+        } catch (IOException e) {
+            System.out.println(String.format("StringMist cache: failed to read %s, %s", entry, e));
+            return false;
+        }
+        //noinspection ResultOfMethodCallIgnored
+        entry.setLastModified(System.currentTimeMillis());
+        return true;
+    }
+
+    public void store(String key, File output) {
+        File entry = entryFile(key);
+        if (entry.isFile()) {
+            return;
+        }
+        File tmp = null;
+        try {
+            Files.createDirectories(entry.getParentFile().toPath());
+            tmp = new File(entry.getParentFile(), "." + key + "-" + UUID.randomUUID() + ".tmp");
+            Files.copy(output.toPath(), tmp.toPath());
+            try {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), entry.toPath());
+            }
+        } catch (FileAlreadyExistsException e) {
+            // Another process published the same entry first, the content is identical by construction.
+        } catch (IOException e) {
+            System.out.println(String.format("StringMist cache: failed to store %s, %s", entry, e));
+        } finally {
+            if (tmp != null && tmp.exists()) {
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache fits in its size limit. Only one process
+     * trims at a time, the others skip trimming instead of waiting for the lock.
+     */
+    public void trim() {
+        if (!cacheDir.isDirectory()) {
+            return;
+        }
+        RandomAccessFile lockFile = null;
+        FileLock lock = null;
+        try {
+            lockFile = new RandomAccessFile(new File(cacheDir, LOCK_FILE_NAME), "rw");
+            FileChannel channel = lockFile.getChannel();
+            lock = channel.tryLock();
+            if (lock == null) {
+                return;
+            }
+
+            List<File> entries = new ArrayList<>();
+            long totalSize = 0;
+            File[] shards = cacheDir.listFiles();
+            if (shards == null) {
+                return;
+            }
+            for (File shard : shards) {
+                File[] files = shard.isDirectory() ? shard.listFiles() : null;
+                if (files == null) {
+                    continue;
+                }
+                for (File file : files) {
+                    if (file.isFile() && !file.getName().startsWith(".")) {
+                        entries.add(file);
+                        totalSize += file.length();
+                    }
+                }
+            }
+            if (totalSize <= maxSize) {
+                return;
+            }
+
+            Collections.sort(entries, new Comparator<File>() {
+                @Override
+                public int compare(File o1, File o2) {
+                    return Long.compare(o1.lastModified(), o2.lastModified());
+                }
+            });
+            for (File entry : entries) {
+                if (totalSize <= maxSize) {
+                    break;
+                }
+                long size = entry.length();
+                if (entry.delete()) {
+                    totalSize -= size;
+                }
+            }
+        } catch (IOException e) {
+            System.out.println(String.format("StringMist cache: failed to trim %s, %s", cacheDir, e));
+        } finally {
+            if (lock != null) {
+                try {
+                    lock.release();
+                } catch (IOException e) {
+                    // Ignored.
+                }
+            }
+            if (lockFile != null) {
+                try {
+                    lockFile.close();
+                } catch (IOException e) {
+                    // Ignored.
+                }
+            }
+        }
+    }
+
+    File entryFile(String key) {
+        return new File(new File(cacheDir, key.substring(0, 2)), key);
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] str = new char[bytes.length * 2];
+        int k = 0;
+        for (byte b : bytes) {
+            str[k++] = HEX_DIGITS[b >>> 4 & 0xf];
+            str[k++] = HEX_DIGITS[b & 0xf];
+        }
+        return new String(str);
+    }
+}
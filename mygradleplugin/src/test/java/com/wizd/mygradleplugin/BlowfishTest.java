@@ -0,0 +1,71 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pins the ciphertext format native-lib decrypts: IV + CBC blocks of the modified Blowfish.
+ */
+public class BlowfishTest {
+    private static final byte[] KEY = "0123456789abcdefghijklmnopqrstuv".getBytes(StandardCharsets.US_ASCII);
+    private static final long IV = 0x0123456789abcdefL;
+
+    // written by the byte-at-a-time implementation this engine replaced
+    private static final String[][] VECTORS = {
+            {"a", "0123456789abcdef62eb2f0964eeac18136df58975d36b22"},
+            {"seven b", "0123456789abcdef435fb8cec4132292364d7ca51a0a588c"},
+            {"eight by", "0123456789abcdefa24c3d728da8a4a3bd4c3ba7001799e158dece3b90da2d19"},
+            {"nine byte", "0123456789abcdef4b666a2ac38bb2dd1093141ea36a7b4d0e80aa49929312b1"},
+            {"string mist literal", "0123456789abcdef7c61c4a86c8dd2619bf309002889badfc1b1f4f3e4c0012b38781c7b8431e688"},
+            {"a somewhat longer literal of 16+ bytes", "0123456789abcdefb2e4f9067585b4723ea485254733b95063eb96e3838a86b72e45b5548c1daaeeb719191c99d521504460512b761e8c59"},
+    };
+
+    @Test
+    public void encryptBytes_matchesReferenceVectors() {
+        Blowfish blowfish = new Blowfish(KEY);
+        for (String[] vector : VECTORS) {
+            assertEquals(vector[0], vector[1], hex(blowfish.encryptBytes(utf8(vector[0]), IV)));
+        }
+    }
+
+    @Test
+    public void encryptBytes_intoBuffer_matchesReferenceVectors() {
+        Blowfish blowfish = new Blowfish(KEY);
+        byte[] out = new byte[128];
+        for (String[] vector : VECTORS) {
+            byte[] plain = utf8("xx" + vector[0]);
+            Arrays.fill(out, (byte) 0x55);
+            int length = blowfish.encryptBytes(plain, 2, plain.length - 2, IV, out, 3);
+            assertEquals(Blowfish.encryptedLength(plain.length - 2), length);
+            assertEquals(vector[0], vector[1], hex(Arrays.copyOfRange(out, 3, 3 + length)));
+            assertEquals(0x55, out[3 + length]);
+        }
+    }
+
+    @Test
+    public void setKey_sameAsNewInstance() {
+        byte[] other = "vutsrqponmlkjihgfedcba9876543210".getBytes(StandardCharsets.US_ASCII);
+        Blowfish reused = new Blowfish(other);
+        reused.encryptBytes(utf8("warm up"), IV);
+        reused.setKey(KEY);
+        for (String[] vector : VECTORS) {
+            assertEquals(vector[0], vector[1], hex(reused.encryptBytes(utf8(vector[0]), IV)));
+        }
+    }
+
+    private static byte[] utf8(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : bytes) {
+            sb.append(String.format("%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,87 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Pins the class and jar rule semantics, including where they differ from the old suffix match.
+ */
+public class ClassMatcherTest {
+
+    @Test
+    public void exactAndPackageRules() {
+        ClassMatcher matcher = new ClassMatcher(new String[]{"com.foo.Bar", "com.pkg.*", "com.tree.**"});
+        assertEquals("com.foo.Bar", matcher.match("com/foo/Bar"));
+        assertNull(matcher.match("com/foo/Baz"));
+        assertNull(matcher.match("com/foo/Bar$1"));
+
+        assertEquals("com.pkg.*", matcher.match("com/pkg/A"));
+        assertNull(matcher.match("com/pkg/sub/A"));
+
+        assertEquals("com.tree.**", matcher.match("com/tree/A"));
+        assertEquals("com.tree.**", matcher.match("com/tree/a/b/C$1"));
+        assertNull(matcher.match("com/treeish/A"));
+    }
+
+    @Test
+    public void globs() {
+        ClassMatcher matcher = new ClassMatcher(new String[]{"com.foo.*Activity", "com.**.Bar", "org.?.A"});
+        assertEquals("com.foo.*Activity", matcher.match("com/foo/MainActivity"));
+        assertNull(matcher.match("com/foo/sub/MainActivity"));
+
+        // ** crosses package segments, and com/**/Bar also matches com/Bar
+        assertEquals("com.**.Bar", matcher.match("com/a/b/c/Bar"));
+        assertEquals("com.**.Bar", matcher.match("com/Bar"));
+        assertNull(matcher.match("com/a/FooBar"));
+
+        assertEquals("org.?.A", matcher.match("org/x/A"));
+        assertNull(matcher.match("org/xy/A"));
+    }
+
+    @Test
+    public void simpleNameRules_matchInAnyPackage() {
+        ClassMatcher matcher = new ClassMatcher(new String[]{"BuildConfig", "R$*"});
+        assertEquals("BuildConfig", matcher.match("BuildConfig"));
+        assertEquals("BuildConfig", matcher.match("com/foo/BuildConfig"));
+        assertEquals("R$*", matcher.match("com/foo/R$string"));
+        assertNull(matcher.match("com/foo/R"));
+        assertNull(matcher.match("com/foo/MyBuildConfig"));
+    }
+
+    @Test
+    public void suffixesNoLongerMatch() {
+        // the old endsWith check let Bar hit FooBar and foo.Bar hit com.foo.Bar
+        ClassMatcher matcher = new ClassMatcher(new String[]{"Bar", "foo.Baz"});
+        assertNull(matcher.match("com/x/FooBar"));
+        assertNull(matcher.match("com/foo/Baz"));
+        assertEquals("foo.Baz", matcher.match("foo/Baz"));
+
+        assertEquals("**.foo.Baz", new ClassMatcher(new String[]{"**.foo.Baz"}).match("com/foo/Baz"));
+    }
+
+    @Test
+    public void firstMatchingRuleWins() {
+        ClassMatcher matcher = new ClassMatcher(new String[]{
+                "com.foo.*Activity", "Main*", "com.foo.MainActivity", "com.**", " com.** ", ""});
+        assertEquals(4, matcher.getRules().size());
+        assertEquals("com.foo.*Activity", matcher.match("com/foo/MainActivity"));
+        assertEquals("Main*", matcher.match("com/bar/MainView"));
+        assertEquals("com.**", matcher.match("com/bar/View"));
+
+        matcher = new ClassMatcher(new String[]{"com.**", "com.foo.Bar", "Bar"});
+        assertEquals("com.**", matcher.match("com/foo/Bar"));
+        assertEquals("Bar", matcher.match("org/Bar"));
+    }
+
+    @Test
+    public void jarRules() {
+        JarMatcher matcher = new JarMatcher(new String[]{"okhttp-*.jar", "http.jar", "lib?.jar"});
+        assertEquals("okhttp-*.jar", matcher.match("okhttp-3.12.jar"));
+        assertEquals("http.jar", matcher.match("okhttp.jar"));
+        assertEquals("lib?.jar", matcher.match("libA.jar"));
+        assertNull(matcher.match("libAB.jar"));
+        // rule order decides, not suffixes before globs
+        assertEquals("*.jar", new JarMatcher(new String[]{"*.jar", "okhttp.jar"}).match("okhttp.jar"));
+    }
+}
@@ -0,0 +1,82 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks restoring from hardlinks and bytes, and what eviction keeps.
+ */
+public class JarMemoryCacheTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void storeAndFetch_roundTrip() throws IOException {
+        JarMemoryCache cache = new JarMemoryCache();
+        byte[] content = "transformed jar".getBytes("UTF-8");
+        File output = write("out.jar", content);
+        File fetched = new File(temp.getRoot(), "fetched.jar");
+        assertFalse(cache.fetch("key", fetched));
+
+        cache.store("key", output);
+        assertTrue(cache.fetch("key", fetched));
+        assertArrayEquals(content, Files.readAllBytes(fetched.toPath()));
+
+        // the output changed, the bytes are still there
+        write("out.jar", "rewritten".getBytes("UTF-8"));
+        assertTrue(cache.fetch("key", fetched));
+        assertArrayEquals(content, Files.readAllBytes(fetched.toPath()));
+    }
+
+    @Test
+    public void evict_dropsBytesOfLeastRecentlyUsed() throws IOException {
+        JarMemoryCache cache = new JarMemoryCache();
+        cache.setMaxSize(400);
+        File first = write("first.jar", new byte[100]);
+        File second = write("second.jar", new byte[100]);
+        cache.store("first", first);
+        cache.store("second", second);
+        File fetched = new File(temp.getRoot(), "fetched.jar");
+        assertTrue(cache.fetch("first", fetched));
+
+        // over budget: second loses its bytes, first was used last and keeps them
+        cache.setMaxSize(150);
+        assertTrue(first.delete());
+        assertTrue(second.delete());
+        assertTrue(cache.fetch("first", fetched));
+        assertArrayEquals(new byte[100], Files.readAllBytes(fetched.toPath()));
+        assertFalse(cache.fetch("second", fetched));
+    }
+
+    @Test
+    public void evict_removesEntriesWithNothingToRestore() throws IOException {
+        JarMemoryCache cache = new JarMemoryCache();
+        cache.setMaxSize(400);
+        File kept = write("kept.jar", new byte[100]);
+        File gone = write("gone.jar", new byte[100]);
+        cache.store("kept", kept);
+        cache.store("gone", gone);
+        assertEquals(2, cache.entryCount());
+
+        // without bytes only the hardlink is left, and the output of gone is deleted
+        assertTrue(gone.delete());
+        cache.setMaxSize(0);
+        assertEquals(1, cache.entryCount());
+        File fetched = new File(temp.getRoot(), "fetched.jar");
+        assertTrue(cache.fetch("kept", fetched));
+        assertArrayEquals(new byte[100], Files.readAllBytes(fetched.toPath()));
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(temp.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
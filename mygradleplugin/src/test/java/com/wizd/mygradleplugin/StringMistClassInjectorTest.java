@@ -0,0 +1,726 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs ASM's bytecode verifier on classes transformed in both rewrite modes.
+ */
+public class StringMistClassInjectorTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+
+    static class Literals {
+        static final String CONSTANT = "static final constant";
+        static String shared = "static field";
+        final String name = "final field";
+
+        String loop(int count) {
+            StringBuilder sb = new StringBuilder("loop start");
+            for (int i = 0; i < count; i++) {
+                if (i % 2 == 0) {
+                    sb.append("even");
+                } else {
+                    sb.append(name);
+                }
+            }
+            return sb.toString();
+        }
+
+        String tryCatch(Object o) {
+            try {
+                return "cast " + (String) o;
+            } catch (ClassCastException e) {
+                return CONSTANT;
+            }
+        }
+
+        int noLiterals(int a, int b) {
+            int sum = 0;
+            for (int i = a; i < b; i++) {
+                sum += i > 10 ? i : -i;
+            }
+            return sum;
+        }
+    }
+
+    interface Constants {
+        String KEY = "interface constant";
+        String OTHER = "another constant";
+
+        static String describe(String value) {
+            return "described " + value + KEY;
+        }
+    }
+
+    static class Dispatch {
+        int kind(String s) {
+            switch (s) {
+                case "alpha":
+                    return 1;
+                case "beta":
+                    return 2;
+                default:
+                    return "gamma".equals(s) ? 3 : 0;
+            }
+        }
+    }
+
+    static class Latin1Literal {
+        String value() {
+            return "caf\u00e9 cr\u00e8me";
+        }
+    }
+
+    static class Utf8Literal {
+        String value() {
+            return "caf\u00e9 \u4e2d\u6587";
+        }
+    }
+
+    static class NoLiterals {
+        int value(int a) {
+            return a * 2;
+        }
+    }
+
+    @Test
+    public void lightRewrite_passesVerifier() throws IOException {
+        byte[] transformed = transform(StringMistConfig.RewriteMode.LIGHT, Literals.class);
+        verify(transformed);
+        verifyOnJvm(Literals.class.getName(), transformed);
+    }
+
+    @Test
+    public void fullRewrite_passesVerifier() throws IOException {
+        byte[] transformed = transform(StringMistConfig.RewriteMode.FULL, Literals.class);
+        verify(transformed);
+        verifyOnJvm(Literals.class.getName(), transformed);
+    }
+
+    @Test
+    public void accessorPolicy_passesVerifier() throws IOException {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.LIGHT);
+        // every method with a literal crosses this limit
+        config.inlineLimit = 1;
+        config.methodSizePolicy = StringMistConfig.MethodSizePolicy.ACCESSOR;
+        byte[] original = readClass(Literals.class);
+        verify(new StringMistClassInjector(config).transformClass(original));
+    }
+
+    @Test
+    public void chunkedLiterals_passVerifier() throws IOException {
+        for (StringMistConfig.RewriteMode mode : StringMistConfig.RewriteMode.values()) {
+            StringMistConfig config = newConfig(mode);
+            // splits every literal of the fixture
+            config.literalChunkSize = 4;
+            verify(new StringMistClassInjector(config).transformClass(readClass(Literals.class)));
+        }
+    }
+
+    @Test
+    public void canonicalStrings_internsDecryptedStrings() throws IOException {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.LIGHT);
+        config.canonicalStrings = true;
+        byte[] transformed = new StringMistClassInjector(config).transformClass(readClass(Literals.class));
+        verify(transformed);
+        assertTrue(methodCalls(transformed).contains("java/lang/String.intern"));
+    }
+
+    @Test
+    public void seed_makesOutputReproducible() throws IOException {
+        byte[] original = readClass(Literals.class);
+        for (StringMistConfig.DecMethodGranularity granularity : StringMistConfig.DecMethodGranularity.values()) {
+            for (StringMistConfig.RewriteMode mode : StringMistConfig.RewriteMode.values()) {
+                StringMistConfig config = newConfig(mode);
+                config.decMethodGranularity = granularity;
+                byte[] first = new StringMistClassInjector(config).transformClass(original);
+                byte[] second = new StringMistClassInjector(config).transformClass(original);
+                assertArrayEquals(granularity + " " + mode, first, second);
+
+                config.seed = "other";
+                byte[] other = new StringMistClassInjector(config).transformClass(original);
+                assertFalse(granularity + " " + mode, Arrays.equals(first, other));
+            }
+        }
+    }
+
+    @Test
+    public void latin1Literals_flagTheirCharset() throws Exception {
+        for (StringMistConfig.Mode mode : Arrays.asList(StringMistConfig.Mode.FULL, StringMistConfig.Mode.FAST)) {
+            assertTrue(mode.name(), xorVal(mode, Latin1Literal.class) < 0);
+            assertTrue(mode.name(), xorVal(mode, Utf8Literal.class) > 0);
+        }
+        // fast mode decrypts without the native side, so the decrypt method can run here
+        assertEquals(new Latin1Literal().value(), decryptedValue(Latin1Literal.class));
+        assertEquals(new Utf8Literal().value(), decryptedValue(Utf8Literal.class));
+    }
+
+    @Test
+    public void splitLiteral_keepsSurrogatePairs() {
+        String value = "ab\ud83d\ude00cd\u00e9\u4e2d";
+        List<String> chunks = StringMistClassVisitor.splitLiteral(value, 3);
+        StringBuilder joined = new StringBuilder();
+        for (String chunk : chunks) {
+            assertFalse(chunk, Character.isLowSurrogate(chunk.charAt(0)));
+            joined.append(chunk);
+        }
+        assertEquals(value, joined.toString());
+        assertEquals(Arrays.asList("ab", "\ud83d\ude00", "cd", "\u00e9", "\u4e2d"), chunks);
+    }
+
+    @Test
+    public void lightRewrite_copiesClassesWithoutStrings() throws IOException {
+        byte[] original = readClass(NoLiterals.class);
+        StringMistClassInjector injector = newInjector(StringMistConfig.RewriteMode.LIGHT);
+        assertSame(original, injector.transformClass(original));
+    }
+
+    @Test
+    public void equalsGuards_keepDecryptOutOfDispatch() throws IOException {
+        for (StringMistConfig.RewriteMode mode : StringMistConfig.RewriteMode.values()) {
+            byte[] transformed = transform(mode, Dispatch.class);
+            verify(transformed);
+            List<String> calls = methodCalls(transformed, "kind");
+            // hashCode, then a guard for each case label and one for "gamma".equals(s)
+            assertEquals(calls.toString(), 4, calls.size());
+            for (String call : calls.subList(1, calls.size())) {
+                assertTrue(calls.toString(), call.contains("$E") || call.contains("$Q"));
+            }
+        }
+    }
+
+    @Test
+    public void fastMode_skipsNativeDecrypt() throws IOException {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.LIGHT);
+        config.mode = StringMistConfig.Mode.FAST;
+        byte[] transformed = new StringMistClassInjector(config).transformClass(readClass(Literals.class));
+        verify(transformed);
+        List<String> calls = methodCalls(transformed);
+        assertFalse(calls.toString(), calls.contains("com/wizd/mygradleplugin/NativeInterface.a"));
+        assertFalse(calls.isEmpty());
+    }
+
+    @Test
+    public void offMode_copiesClasses() throws IOException {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.FULL);
+        config.mode = StringMistConfig.Mode.OFF;
+        StringMistClassInjector injector = new StringMistClassInjector(config);
+        injector.setVerbose(false);
+        File dir = temp.newFolder();
+        File in = new File(dir, "Literals.class");
+        File out = new File(dir, "out.class");
+        Files.write(in.toPath(), readClass(Literals.class));
+        injector.doFog2Class(in, out);
+        assertArrayEquals(Files.readAllBytes(in.toPath()), Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void stage_sharesPassAndGetsItsLiteralsEncrypted() throws IOException {
+        for (StringMistConfig.RewriteMode mode : StringMistConfig.RewriteMode.values()) {
+            StringMistClassInjector injector = newInjector(mode);
+            injector.addStage(new TraceStage("trace", 0));
+            byte[] original = readClass(NoLiterals.class);
+            byte[] transformed = injector.transformClass(original);
+            assertNotSame(original, transformed);
+            verify(transformed);
+
+            List<Object> constants = ldcConstants(transformed);
+            assertFalse(constants.toString(), constants.contains("enter value"));
+            assertFalse(methodCalls(transformed).isEmpty());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void stageWithComputeFrames_isRejected() {
+        newInjector(StringMistConfig.RewriteMode.FULL).addStage(new TraceStage("trace", ClassWriter.COMPUTE_FRAMES));
+    }
+
+    @Test
+    public void stageWithoutFingerprint_transformsJarWithoutCaching() throws IOException {
+        File jarIn = temp.newFile("in.jar");
+        File jarOut = new File(temp.getRoot(), "out.jar");
+        byte[] original = readClass(Literals.class);
+        writeJar(jarIn, Collections.singletonMap(entryName(Literals.class), original));
+
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.FULL);
+        config.includeJars = new String[]{"in.jar"};
+        StringMistClassInjector injector = new StringMistClassInjector(config);
+        injector.setVerbose(false);
+        File cacheDir = temp.newFolder("cache");
+        injector.setCache(new TransformCache(cacheDir, 1 << 20));
+        injector.setMemoryCache(JarMemoryCache.getInstance());
+        injector.addStage(new TraceStage(null, 0));
+        try {
+            injector.doFog2Jar(jarIn, jarOut);
+        } finally {
+            injector.shutdown();
+        }
+
+        assertFalse(Arrays.equals(original, readJar(jarOut).get(entryName(Literals.class))));
+        assertEquals(0, cacheDir.list().length);
+    }
+
+    @Test
+    public void jarOutsideIncludeJars_passesThroughUncached() throws IOException {
+        File jarIn = temp.newFile("other.jar");
+        File jarOut = new File(temp.getRoot(), "out.jar");
+        writeJar(jarIn, Collections.singletonMap(entryName(Literals.class), readClass(Literals.class)));
+
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.FULL);
+        config.includeJars = new String[]{"in.jar"};
+        StringMistClassInjector injector = new StringMistClassInjector(config);
+        injector.setVerbose(false);
+        File cacheDir = temp.newFolder("cache");
+        injector.setCache(new TransformCache(cacheDir, 1 << 20));
+        try {
+            injector.doFog2Jar(jarIn, jarOut);
+        } finally {
+            injector.shutdown();
+        }
+
+        assertArrayEquals(Files.readAllBytes(jarIn.toPath()), Files.readAllBytes(jarOut.toPath()));
+        assertEquals(0, cacheDir.list().length);
+    }
+
+    @Test
+    public void lazyInterfaceConstants_readThroughHolder() throws Exception {
+        String reader = "com/wizd/mygradleplugin/ConstantsReader";
+        String iface = Constants.class.getName().replace('.', '/');
+        String holder = iface + InterfaceConstants.HOLDER_SUFFIX;
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(entryName(Constants.class), readClass(Constants.class));
+        entries.put(reader + ".class", constantsReader(reader, iface));
+        File jarIn = new File(temp.getRoot(), "constants.jar");
+        File jarOut = new File(temp.getRoot(), "constants-out.jar");
+        writeJar(jarIn, entries);
+
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.LIGHT);
+        config.includeJars = new String[]{jarIn.getName()};
+        // decrypts without the native side
+        config.mode = StringMistConfig.Mode.FAST;
+        config.lazyInterfaceConstants = true;
+        StringMistClassInjector injector = new StringMistClassInjector(config);
+        injector.setVerbose(false);
+        try {
+            injector.indexInterfaceConstants(Collections.singletonList(jarIn));
+            injector.doFog2Jar(jarIn, jarOut);
+        } finally {
+            injector.shutdown();
+        }
+
+        Map<String, byte[]> out = readJar(jarOut);
+        assertEquals(Arrays.asList(entryName(Constants.class), holder + ".class", reader + ".class"),
+                new ArrayList<>(out.keySet()));
+        for (byte[] classBytes : out.values()) {
+            verify(classBytes);
+        }
+        // the interface has nothing left to initialize, its own use of KEY goes to the holder
+        assertEquals(Collections.emptyList(), methodCalls(out.get(entryName(Constants.class)), "<clinit>"));
+        assertTrue(methodCalls(out.get(entryName(Constants.class)), "describe").contains(holder + ".KEY"));
+        assertEquals(Arrays.asList(holder + ".KEY"), methodCalls(out.get(reader + ".class"), "key"));
+
+        ClassLoader loader = jarLoader(out);
+        Method key = Class.forName(reader.replace('/', '.'), true, loader).getMethod("key");
+        assertEquals(Constants.KEY, key.invoke(null));
+        // reads that were not rewritten, like this one, see the field nobody sets
+        Field other = Class.forName(Constants.class.getName(), true, loader).getField("OTHER");
+        other.setAccessible(true);
+        assertNull(other.get(null));
+    }
+
+    @Test
+    public void parallelJar_roundTrips() throws IOException {
+        byte[] text = "not a class".getBytes("UTF-8");
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("com/wizd/mygradleplugin/", null);
+        entries.put(entryName(Constants.class), readClass(Constants.class));
+        entries.put("res/readme.txt", text);
+        File jarIn = temp.newFile("in.jar");
+        File jarOut = new File(temp.getRoot(), "out.jar");
+        writeJar(jarIn, entries);
+        transformJar(StringMistConfig.Compression.PARALLEL, jarIn, jarOut);
+
+        List<String> names = new ArrayList<>();
+        ZipFile zip = new ZipFile(jarOut);
+        try {
+            Enumeration<? extends ZipEntry> zipEntries = zip.entries();
+            while (zipEntries.hasMoreElements()) {
+                names.add(zipEntries.nextElement().getName());
+            }
+            assertTrue(zip.getEntry("com/wizd/mygradleplugin/").isDirectory());
+        } finally {
+            zip.close();
+        }
+        assertEquals(Arrays.asList("com/wizd/mygradleplugin/", entryName(Constants.class), "res/readme.txt"),
+                names);
+
+        // ZipInputStream goes by the local headers and checks the CRCs
+        Map<String, byte[]> streamed = readJar(jarOut);
+        assertEquals(names, new ArrayList<>(streamed.keySet()));
+        assertArrayEquals(text, streamed.get("res/readme.txt"));
+        verify(streamed.get(entryName(Constants.class)));
+    }
+
+    @Test
+    public void gbkEntryNames_areReadAndWrittenAsUtf8() throws IOException {
+        String resName = "res/字符串.txt";
+        byte[] text = "not a class".getBytes("UTF-8");
+        File jarIn = temp.newFile("in.jar");
+        File jarOut = new File(temp.getRoot(), "out.jar");
+        // no UTF-8 flag, the names are plain GBK bytes
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(jarIn), Charset.forName("GBK"));
+        try {
+            out.putNextEntry(new ZipEntry(entryName(Constants.class)));
+            out.write(readClass(Constants.class));
+            out.closeEntry();
+            out.putNextEntry(new ZipEntry(resName));
+            out.write(text);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+        transformJar(StringMistConfig.Compression.DEFAULT, jarIn, jarOut);
+
+        Map<String, byte[]> streamed = readJar(jarOut);
+        assertArrayEquals(text, streamed.get(resName));
+        verify(streamed.get(entryName(Constants.class)));
+    }
+
+    @Test
+    public void parallelJar_fallsBackAtTheEntryLimit() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put(entryName(Constants.class), readClass(Constants.class));
+        byte[] empty = new byte[0];
+        for (int i = 0; entries.size() < RawZipWriter.MAX_ENTRIES; i++) {
+            entries.put("res/" + i, empty);
+        }
+        File jarIn = temp.newFile("in.jar");
+        File jarOut = new File(temp.getRoot(), "out.jar");
+        writeJar(jarIn, entries);
+        transformJar(StringMistConfig.Compression.PARALLEL, jarIn, jarOut);
+
+        ZipFile zip = new ZipFile(jarOut);
+        try {
+            assertEquals(RawZipWriter.MAX_ENTRIES, zip.size());
+            verify(readFully(zip.getInputStream(zip.getEntry(entryName(Constants.class)))));
+        } finally {
+            zip.close();
+        }
+    }
+
+    private static StringMistConfig newConfig(StringMistConfig.RewriteMode mode) {
+        StringMistConfig config = new StringMistConfig("com/wizd/mygradleplugin/NativeInterface", null, null);
+        config.seed = "test";
+        config.rewriteMode = mode;
+        return config;
+    }
+
+    private static StringMistClassInjector newInjector(StringMistConfig.RewriteMode mode) {
+        StringMistClassInjector injector = new StringMistClassInjector(newConfig(mode));
+        injector.setVerbose(false);
+        return injector;
+    }
+
+    private static byte[] transform(StringMistConfig.RewriteMode mode, Class<?> clazz) throws IOException {
+        byte[] original = readClass(clazz);
+        byte[] transformed = newInjector(mode).transformClass(original);
+        assertNotSame(original, transformed);
+        return transformed;
+    }
+
+    private static void verify(byte[] classBytes) {
+        StringWriter errors = new StringWriter();
+        CheckClassAdapter.verify(new ClassReader(classBytes), StringMistClassInjectorTest.class.getClassLoader(),
+                false, new PrintWriter(errors));
+        assertEquals("", errors.toString());
+    }
+
+    // the byte passed to the decrypt method, the only int constant of the fixtures
+    private static int xorVal(StringMistConfig.Mode mode, Class<?> clazz) throws IOException {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.LIGHT);
+        config.mode = mode;
+        byte[] transformed = new StringMistClassInjector(config).transformClass(readClass(clazz));
+        List<Integer> ints = new ArrayList<>();
+        for (Object constant : ldcConstants(transformed)) {
+            if (constant instanceof Integer) {
+                ints.add((Integer) constant);
+            }
+        }
+        assertEquals(ints.toString(), 1, ints.size());
+        return ints.get(0);
+    }
+
+    private static String decryptedValue(Class<?> clazz) throws Exception {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.LIGHT);
+        config.mode = StringMistConfig.Mode.FAST;
+        byte[] transformed = new StringMistClassInjector(config).transformClass(readClass(clazz));
+        Class<?> loaded = Class.forName(clazz.getName(), true, throwawayLoader(clazz.getName(), transformed));
+        Constructor<?> constructor = loaded.getDeclaredConstructor();
+        constructor.setAccessible(true);
+        Method value = loaded.getDeclaredMethod("value");
+        value.setAccessible(true);
+        return (String) value.invoke(constructor.newInstance());
+    }
+
+    /**
+     * Defines the class in a throwaway loader, so that the JVM's type-checking verifier checks it,
+     * including the StackMapTable frames CheckClassAdapter ignores.
+     */
+    private static void verifyOnJvm(String className, byte[] classBytes) {
+        try {
+            Class.forName(className, true, throwawayLoader(className, classBytes));
+        } catch (VerifyError e) {
+            throw new AssertionError(className + ": " + e.getMessage());
+        } catch (ClassNotFoundException e) {
+            throw new AssertionError(e.toString());
+        } catch (LinkageError e) {
+            // verified; the static initializer can't reach the native decryptor in tests
+        }
+    }
+
+    /**
+     * @return a loader that defines className from classBytes and leaves other classes to the
+     *         test's loader
+     */
+    private static ClassLoader throwawayLoader(final String className, final byte[] classBytes) {
+        return new ClassLoader(StringMistClassInjectorTest.class.getClassLoader()) {
+            @Override
+            protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                if (!name.equals(className)) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> clazz = findLoadedClass(name);
+                return clazz != null ? clazz : defineClass(name, classBytes, 0, classBytes.length);
+            }
+        };
+    }
+
+    /**
+     * @return owner.name of every method call in the class, in order
+     */
+    static List<String> methodCalls(byte[] classBytes) {
+        return methodCalls(classBytes, null);
+    }
+
+    /**
+     * @param methodName only calls made by methods with this name, null for all methods
+     */
+    static List<String> methodCalls(byte[] classBytes, final String methodName) {
+        final List<String> calls = new ArrayList<>();
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                if (methodName != null && !methodName.equals(name)) {
+                    return null;
+                }
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitMethodInsn(int opcode, String owner, String name, String desc, boolean itf) {
+                        calls.add(owner + "." + name);
+                    }
+                };
+            }
+        }, 0);
+        return calls;
+    }
+
+    /**
+     * @return the constant of every ldc in the class, in order
+     */
+    static List<Object> ldcConstants(byte[] classBytes) {
+        final List<Object> constants = new ArrayList<>();
+        new ClassReader(classBytes).accept(new ClassVisitor(Opcodes.ASM5) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM5) {
+                    @Override
+                    public void visitLdcInsn(Object cst) {
+                        constants.add(cst);
+                    }
+                };
+            }
+        }, 0);
+        return constants;
+    }
+
+    private static void transformJar(StringMistConfig.Compression compression, File jarIn, File jarOut) throws IOException {
+        StringMistConfig config = newConfig(StringMistConfig.RewriteMode.FULL);
+        config.includeJars = new String[]{jarIn.getName()};
+        config.jarCompression = compression;
+        StringMistClassInjector injector = new StringMistClassInjector(config);
+        injector.setVerbose(false);
+        try {
+            injector.doFog2Jar(jarIn, jarOut);
+        } finally {
+            injector.shutdown();
+        }
+    }
+
+    // public class whose key() reads iface.KEY with getstatic, as javac never does for a constant
+    private static byte[] constantsReader(String name, String iface) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_7, Opcodes.ACC_PUBLIC | Opcodes.ACC_SUPER, name, null, "java/lang/Object", null);
+        MethodVisitor mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "key", "()Ljava/lang/String;",
+                null, null);
+        mv.visitCode();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, iface, "KEY", "Ljava/lang/String;");
+        mv.visitInsn(Opcodes.ARETURN);
+        mv.visitMaxs(0, 0);
+        mv.visitEnd();
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    /**
+     * @return a loader that defines the classes of a jar's entries and leaves other classes to
+     *         the test's loader
+     */
+    private static ClassLoader jarLoader(final Map<String, byte[]> entries) {
+        return new ClassLoader(StringMistClassInjectorTest.class.getClassLoader()) {
+            @Override
+            protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+                byte[] classBytes = entries.get(name.replace('.', '/') + ".class");
+                if (classBytes == null) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> clazz = findLoadedClass(name);
+                return clazz != null ? clazz : defineClass(name, classBytes, 0, classBytes.length);
+            }
+        };
+    }
+
+    static String entryName(Class<?> clazz) {
+        return clazz.getName().replace('.', '/') + ".class";
+    }
+
+    /**
+     * @param entries entry name -> content, null for directories
+     */
+    static void writeJar(File jar, Map<String, byte[]> entries) throws IOException {
+        JarOutputStream out = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new JarEntry(entry.getKey()));
+                if (entry.getValue() != null) {
+                    out.write(entry.getValue());
+                }
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static Map<String, byte[]> readJar(File jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        ZipInputStream in = new ZipInputStream(new FileInputStream(jar));
+        try {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), readFully(in));
+            }
+        } finally {
+            in.close();
+        }
+        return entries;
+    }
+
+    static byte[] readClass(Class<?> clazz) throws IOException {
+        String resource = "/" + clazz.getName().replace('.', '/') + ".class";
+        InputStream in = clazz.getResourceAsStream(resource);
+        assertNotNull(resource, in);
+        try {
+            return readFully(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A tracing transform: every method starts with a literal of its own.
+     */
+    private static class TraceStage implements ClassTransformStage {
+        private final String fingerprint;
+        private final int writerFlags;
+
+        TraceStage(String fingerprint, int writerFlags) {
+            this.fingerprint = fingerprint;
+            this.writerFlags = writerFlags;
+        }
+
+        @Override
+        public ClassVisitor wrap(String className, ClassVisitor next) {
+            return new ClassVisitor(Opcodes.ASM5, next) {
+                @Override
+                public MethodVisitor visitMethod(int access, final String name, String desc, String signature, String[] exceptions) {
+                    return new MethodVisitor(Opcodes.ASM5, super.visitMethod(access, name, desc, signature, exceptions)) {
+                        @Override
+                        public void visitCode() {
+                            super.visitCode();
+                            super.visitLdcInsn("enter " + name);
+                            super.visitInsn(Opcodes.POP);
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public int writerFlags() {
+            return writerFlags;
+        }
+
+        @Override
+        public String fingerprint() {
+            return fingerprint;
+        }
+    }
+}
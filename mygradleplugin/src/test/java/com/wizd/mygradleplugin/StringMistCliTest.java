@@ -0,0 +1,71 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks argument errors and the holders jar written next to a transformed jar.
+ */
+public class StringMistCliTest {
+    private static final String NATIVE_INTERFACE = "com.wizd.mygradleplugin.NativeInterface";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void missingValue_isUsageError() {
+        assertEquals(2, StringMistCli.exitCode(new String[]{"--native-interface"}));
+        assertEquals(2, StringMistCli.exitCode(new String[]{"--native-interface", NATIVE_INTERFACE, "--seed"}));
+    }
+
+    @Test
+    public void unknownOption_isUsageError() {
+        assertEquals(2, StringMistCli.exitCode(new String[]{"--native-interface", NATIVE_INTERFACE, "--frobnicate",
+                "in.jar", "out.jar"}));
+    }
+
+    @Test
+    public void missingInputOrOutput_isUsageError() throws IOException {
+        File jarIn = temp.newFile("in.jar");
+        assertEquals(2, StringMistCli.exitCode(new String[]{jarIn.getPath(), "out.jar"}));
+        assertEquals(2, StringMistCli.exitCode(new String[]{"--native-interface", NATIVE_INTERFACE, jarIn.getPath()}));
+        assertEquals(2, StringMistCli.exitCode(new String[]{"--native-interface", NATIVE_INTERFACE,
+                new File(temp.getRoot(), "missing.jar").getPath(), "out.jar"}));
+    }
+
+    @Test
+    public void packageHolders_areWrittenNextToOutputJar() throws IOException {
+        File jarIn = temp.newFile("in.jar");
+        StringMistClassInjectorTest.writeJar(jarIn, Collections.singletonMap(
+                StringMistClassInjectorTest.entryName(StringMistClassInjectorTest.Literals.class),
+                StringMistClassInjectorTest.readClass(StringMistClassInjectorTest.Literals.class)));
+        File jarOut = new File(temp.newFolder("out"), "app.jar");
+
+        assertEquals(0, StringMistCli.exitCode(new String[]{"--native-interface", NATIVE_INTERFACE,
+                "--seed", "test", "--granularity", "package", jarIn.getPath(), jarOut.getPath()}));
+        assertTrue(jarOut.isFile());
+
+        File holdersJar = new File(jarOut.getParentFile(), "app-holders.jar");
+        ZipFile zip = new ZipFile(holdersJar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            assertTrue(entries.hasMoreElements());
+            while (entries.hasMoreElements()) {
+                String name = entries.nextElement().getName();
+                assertTrue(name, name.startsWith("com/wizd/mygradleplugin/") && name.endsWith(".class"));
+            }
+        } finally {
+            zip.close();
+        }
+    }
+}
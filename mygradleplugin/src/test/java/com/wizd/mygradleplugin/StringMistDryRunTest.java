@@ -0,0 +1,41 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Test;
+import org.objectweb.asm.ClassReader;
+
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the literal counts the dry run report is built from.
+ */
+public class StringMistDryRunTest {
+
+    static class Literals {
+        static final String CONSTANT = "static final constant";
+        static String shared;
+
+        static {
+            shared = "static initializer";
+        }
+
+        String loop(int count) {
+            StringBuilder sb = new StringBuilder("before loop");
+            for (int i = 0; i < count; i++) {
+                sb.append("in loop");
+            }
+            return sb.append("after loop").append(" ").toString();
+        }
+    }
+
+    @Test
+    public void literalScanner_countsLoopsAndStaticInitializers() throws IOException {
+        StringMistDryRun.LiteralScanner scan = new StringMistDryRun.LiteralScanner();
+        new ClassReader(Literals.class.getName()).accept(scan, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        // the blank literal is not encryptable
+        assertEquals(5, scan.literals);
+        assertEquals(1, scan.inLoops);
+        assertEquals(2, scan.inClinit);
+    }
+}
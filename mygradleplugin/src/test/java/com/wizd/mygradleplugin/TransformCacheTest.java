@@ -0,0 +1,85 @@
+package com.wizd.mygradleplugin;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks cache keys, the store and fetch round trip and LRU trimming.
+ */
+public class TransformCacheTest {
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void storeAndFetch_roundTrip() throws IOException {
+        TransformCache cache = new TransformCache(temp.newFolder("cache"), 1 << 20);
+        byte[] content = "transformed".getBytes("UTF-8");
+        File output = write("out.class", content);
+        String key = TransformCache.keyOf(content, "config");
+
+        File fetched = new File(temp.getRoot(), "fetched.class");
+        assertFalse(cache.fetch(key, fetched));
+        assertFalse(fetched.exists());
+
+        cache.store(key, output);
+        assertTrue(cache.fetch(key, fetched));
+        assertArrayEquals(content, Files.readAllBytes(fetched.toPath()));
+    }
+
+    @Test
+    public void keyOf_changesWithConfig() throws IOException {
+        byte[] input = "input".getBytes("UTF-8");
+        StringMistConfig config = new StringMistConfig("com/foo/NativeInterface", null, null);
+        config.seed = "one";
+        String key = TransformCache.keyOf(input, config.fingerprint());
+        assertEquals(key, TransformCache.keyOf(write("in.class", input), config.fingerprint()));
+
+        config.seed = "two";
+        assertNotEquals(key, TransformCache.keyOf(input, config.fingerprint()));
+        config.seed = "one";
+        config.rewriteMode = StringMistConfig.RewriteMode.FULL;
+        assertNotEquals(key, TransformCache.keyOf(input, config.fingerprint()));
+        assertNotEquals(key, TransformCache.keyOf("other".getBytes("UTF-8"), "config"));
+    }
+
+    @Test
+    public void trim_evictsLeastRecentlyUsed() throws IOException {
+        TransformCache cache = new TransformCache(temp.newFolder("cache"), 250);
+        String[] keys = new String[3];
+        for (int i = 0; i < keys.length; i++) {
+            byte[] content = new byte[100];
+            content[0] = (byte) i;
+            keys[i] = TransformCache.keyOf(content, "config");
+            cache.store(keys[i], write("out" + i, content));
+        }
+        // stored in the order 2, 1, 0, then a hit on 2 makes 1 the least recently used
+        long now = System.currentTimeMillis();
+        assertTrue(cache.entryFile(keys[0]).setLastModified(now - 10000));
+        assertTrue(cache.entryFile(keys[1]).setLastModified(now - 20000));
+        assertTrue(cache.entryFile(keys[2]).setLastModified(now - 30000));
+        assertTrue(cache.fetch(keys[2], new File(temp.getRoot(), "hit")));
+
+        cache.trim();
+        assertFalse(cache.entryFile(keys[1]).exists());
+        assertTrue(cache.entryFile(keys[0]).exists());
+        assertTrue(cache.entryFile(keys[2]).exists());
+
+        // already within the limit
+        cache.trim();
+        assertTrue(cache.entryFile(keys[0]).exists());
+        assertTrue(cache.entryFile(keys[2]).exists());
+    }
+
+    private File write(String name, byte[] content) throws IOException {
+        File file = new File(temp.getRoot(), name);
+        Files.write(file.toPath(), content);
+        return file;
+    }
+}
@@ -0,0 +1,136 @@
+package com.wizd.plugin;
+
+import org.gradle.testkit.runner.BuildResult;
+import org.gradle.testkit.runner.GradleRunner;
+import org.gradle.testkit.runner.TaskOutcome;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Builds an app with an aar from a repository, whose manifest and resources are resolved from the
+ * same runtime classpath as the encrypted class jars. Needs an Android SDK (ANDROID_HOME or
+ * ANDROID_SDK_ROOT) and the plugin's runtime classpath, which the Gradle build passes in, and is
+ * skipped without them.
+ */
+public class StringMistDependencyTransformTest {
+    // oldest Gradle with artifact transforms that AGP 3.4 runs on
+    private static final String GRADLE_VERSION = "5.4.1";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void externalAar_resolvesManifestAndResources() throws IOException {
+        String sdk = System.getenv("ANDROID_HOME") != null ? System.getenv("ANDROID_HOME") : System.getenv("ANDROID_SDK_ROOT");
+        String pluginClasspath = System.getProperty("stringmist.pluginClasspath");
+        Assume.assumeTrue("no Android SDK", sdk != null);
+        Assume.assumeTrue("no plugin classpath", pluginClasspath != null);
+
+        File project = temp.newFolder("app");
+        File repo = new File(project, "repo/com/example/widget/1.0");
+        Files.createDirectories(repo.toPath());
+        writeAar(new File(repo, "widget-1.0.aar"));
+        write(new File(repo, "widget-1.0.pom"), "<project><modelVersion>4.0.0</modelVersion>"
+                + "<groupId>com.example</groupId><artifactId>widget</artifactId><version>1.0</version>"
+                + "<packaging>aar</packaging></project>");
+
+        write(new File(project, "local.properties"), "sdk.dir=" + sdk.replace("\\", "\\\\") + "\n");
+        write(new File(project, "settings.gradle"), "rootProject.name = 'app'\n");
+        write(new File(project, "src/main/AndroidManifest.xml"),
+                "<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\" package=\"com.example.app\"/>\n");
+        write(new File(project, "src/main/java/com/example/app/NativeInterface.java"), ""
+                + "package com.example.app;\n"
+                + "public class NativeInterface {\n"
+                + "    public native static byte[] a(byte[] in, byte[] key);\n"
+                + "}\n");
+        write(new File(project, "build.gradle"), ""
+                + "plugins {\n"
+                + "    id 'com.android.application'\n"
+                + "    id 'stringmist'\n"
+                + "}\n"
+                + "repositories {\n"
+                + "    maven { url uri('repo') }\n"
+                + "    google()\n"
+                + "}\n"
+                + "android {\n"
+                + "    compileSdkVersion 29\n"
+                + "    defaultConfig {\n"
+                + "        applicationId 'com.example.app'\n"
+                + "        minSdkVersion 19\n"
+                + "    }\n"
+                + "}\n"
+                + "dependencies {\n"
+                + "    implementation 'com.example:widget:1.0'\n"
+                + "}\n"
+                + "stringmist {\n"
+                + "    nativeInterfaceClass = 'com.example.app.NativeInterface'\n"
+                + "    includeJars = ['classes.jar']\n"
+                + "}\n");
+
+        List<File> classpath = new ArrayList<>();
+        for (String path : pluginClasspath.split(File.pathSeparator)) {
+            classpath.add(new File(path));
+        }
+        BuildResult result = GradleRunner.create()
+                .withGradleVersion(GRADLE_VERSION)
+                .withProjectDir(project)
+                .withPluginClasspath(classpath)
+                .withArguments("assembleDebug", "--stacktrace")
+                .build();
+
+        assertEquals(TaskOutcome.SUCCESS, result.task(":assembleDebug").getOutcome());
+        assertFalse(result.getOutput(), result.getOutput().contains("No matching variant"));
+    }
+
+    // An aar with a manifest, a string resource and an empty classes.jar.
+    private static void writeAar(File aar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        entries.put("AndroidManifest.xml", ("<manifest xmlns:android=\"http://schemas.android.com/apk/res/android\""
+                + " package=\"com.example.widget\"/>\n").getBytes(StandardCharsets.UTF_8));
+        entries.put("res/values/values.xml", ("<resources>\n"
+                + "    <string name=\"widget_name\">Widget</string>\n"
+                + "</resources>\n").getBytes(StandardCharsets.UTF_8));
+        entries.put("R.txt", "int string widget_name 0x7f010001\n".getBytes(StandardCharsets.UTF_8));
+        entries.put("classes.jar", zip(new LinkedHashMap<String, byte[]>()));
+        Files.write(aar.toPath(), zip(entries));
+    }
+
+    private static byte[] zip(Map<String, byte[]> entries) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ZipOutputStream out = new ZipOutputStream(bytes);
+        try {
+            // an empty zip is not a valid jar
+            out.putNextEntry(new ZipEntry("META-INF/"));
+            out.closeEntry();
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                out.putNextEntry(new ZipEntry(entry.getKey()));
+                out.write(entry.getValue());
+                out.closeEntry();
+            }
+        } finally {
+            out.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void write(File file, String text) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+    }
+}